@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ch.jamiete.hilda.vote.Vote;
+import ch.jamiete.hilda.vote.VotePlugin;
+import ch.jamiete.hilda.vote.VoteResponse;
+
+/**
+ * Measures registering ballots, half of them changing an existing ballot and half casting a new one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Dhilda.vote.data=target/benchmark-data")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BallotBenchmark {
+    private static final VoteResponse[] RESPONSES = VoteResponse.values();
+
+    @Param({ "1000", "100000" })
+    public int ballots;
+
+    private Fixture fixture;
+    private VotePlugin plugin;
+    private Vote vote;
+
+    @Setup
+    public void setup() {
+        Fixture.clean();
+
+        this.fixture = new Fixture(100);
+        this.plugin = this.fixture.enable();
+        this.vote = this.fixture.vote(this.plugin, "b2", this.ballots);
+
+        this.plugin.addVote(this.vote);
+        this.plugin.validate(this.vote);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.plugin.onDisable();
+        this.fixture.shutdown();
+    }
+
+    private VoteResponse ballot() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final long user = Fixture.FIRST_USER + random.nextInt(this.ballots * 2);
+
+        return this.vote.register(user, BallotBenchmark.RESPONSES[random.nextInt(BallotBenchmark.RESPONSES.length)]);
+    }
+
+    @Benchmark
+    public VoteResponse register() {
+        return this.ballot();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public VoteResponse registerContended() {
+        return this.ballot();
+    }
+
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ch.jamiete.hilda.vote.Vote;
+import ch.jamiete.hilda.vote.VotePlugin;
+
+/**
+ * Measures checking whether a vote is complete and counting the members yet to vote, with half the channel voted.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Dhilda.vote.data=target/benchmark-data")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CheckBenchmark {
+    @Param({ "100", "10000" })
+    public int members;
+
+    private Fixture fixture;
+    private VotePlugin plugin;
+    private Vote vote;
+
+    @Setup
+    public void setup() {
+        Fixture.clean();
+
+        this.fixture = new Fixture(this.members);
+        this.plugin = this.fixture.enable();
+        this.vote = this.fixture.vote(this.plugin, "c2", this.members / 2);
+
+        this.plugin.addVote(this.vote);
+        this.plugin.validate(this.vote);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.plugin.onDisable();
+        this.fixture.shutdown();
+    }
+
+    @Benchmark
+    public int check() {
+        this.vote.check();
+        return this.vote.getPending();
+    }
+
+    @Benchmark
+    public int countPending() {
+        this.vote.countPending();
+        return this.vote.getPending();
+    }
+
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.mockito.Mockito;
+import ch.jamiete.hilda.Hilda;
+import ch.jamiete.hilda.commands.CommandManager;
+import ch.jamiete.hilda.vote.Vote;
+import ch.jamiete.hilda.vote.VotePlugin;
+import ch.jamiete.hilda.vote.VoteResponse;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.User;
+
+/**
+ * In-memory stand-ins for Hilda and the parts of JDA the plugin uses: one guild with one channel that every member can
+ * see. Members are numbered from {@link #FIRST_USER}; users past the last member have left the guild but are still
+ * known to the bot.
+ */
+public class Fixture {
+    public static final long GUILD = 300000000000000000L;
+    public static final long CHANNEL = 300000000000000001L;
+    public static final long FIRST_USER = 310000000000000000L;
+
+    private static final VoteResponse[] RESPONSES = VoteResponse.values();
+
+    private final Hilda hilda;
+    private final JDA bot;
+    private final Guild guild;
+    private final TextChannel channel;
+    private final ScheduledExecutorService executor;
+    private final HashMap<Long, Member> members = new HashMap<>();
+
+    /**
+     * Deletes everything the plugin has saved in {@link VotePlugin#FOLDER}.
+     */
+    public static void clean() {
+        final File[] files = VotePlugin.FOLDER.listFiles();
+
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static <T> T stub(final Class<T> type) {
+        // Stub-only mocks do not record invocations, so they do not grow over millions of calls
+        return Mockito.mock(type, Mockito.withSettings().stubOnly());
+    }
+
+    public Fixture(final int members) {
+        this.hilda = Fixture.stub(Hilda.class);
+        this.bot = Fixture.stub(JDA.class);
+        this.guild = Fixture.stub(Guild.class);
+        this.channel = Fixture.stub(TextChannel.class);
+        this.executor = Executors.newScheduledThreadPool(2, r -> {
+            final Thread thread = new Thread(r, "benchmark-executor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final ArrayList<Member> list = new ArrayList<>(members);
+
+        for (int i = 0; i < members; i++) {
+            final long id = Fixture.FIRST_USER + i;
+            final User user = Fixture.stub(User.class);
+            final Member member = Fixture.stub(Member.class);
+
+            Mockito.when(user.getIdLong()).thenReturn(id);
+            Mockito.when(user.getId()).thenReturn(Long.toString(id));
+            Mockito.when(member.getUser()).thenReturn(user);
+            Mockito.when(member.getEffectiveName()).thenReturn("Member " + i);
+
+            this.members.put(id, member);
+            list.add(member);
+        }
+
+        final User departed = Fixture.stub(User.class);
+
+        Mockito.when(this.hilda.getBot()).thenReturn(this.bot);
+        Mockito.when(this.hilda.getExecutor()).thenReturn(this.executor);
+        Mockito.when(this.hilda.getCommandManager()).thenReturn(Fixture.stub(CommandManager.class));
+
+        Mockito.when(this.bot.getTextChannelById(Mockito.anyString())).thenReturn(this.channel);
+        Mockito.when(this.bot.getTextChannelById(Mockito.anyLong())).thenReturn(this.channel);
+        Mockito.when(this.bot.getUserById(Mockito.anyLong())).thenAnswer(invocation -> {
+            final Member member = this.members.get(invocation.<Long>getArgument(0));
+            return member == null ? departed : member.getUser();
+        });
+
+        Mockito.when(this.guild.getId()).thenReturn(Long.toString(Fixture.GUILD));
+        Mockito.when(this.guild.getIdLong()).thenReturn(Fixture.GUILD);
+        Mockito.when(this.guild.getTextChannelById(Mockito.anyString())).thenReturn(this.channel);
+        Mockito.when(this.guild.getMemberById(Mockito.anyLong())).thenAnswer(invocation -> this.members.get(invocation.<Long>getArgument(0)));
+
+        Mockito.when(this.channel.getId()).thenReturn(Long.toString(Fixture.CHANNEL));
+        Mockito.when(this.channel.getIdLong()).thenReturn(Fixture.CHANNEL);
+        Mockito.when(this.channel.getGuild()).thenReturn(this.guild);
+        Mockito.when(this.channel.getMembers()).thenReturn(list);
+    }
+
+    /**
+     * Creates a plugin and enables it, loading whatever is saved in {@link VotePlugin#FOLDER}.
+     * @return The plugin
+     */
+    public VotePlugin enable() {
+        final VotePlugin plugin = new VotePlugin(this.hilda);
+        plugin.onEnable();
+        return plugin;
+    }
+
+    public TextChannel getChannel() {
+        return this.channel;
+    }
+
+    public Hilda getHilda() {
+        return this.hilda;
+    }
+
+    /**
+     * Stops the executor given to the plugin.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Creates a vote in the fixture's channel. The first users vote yea, nay and abstain in turn.
+     * @param plugin The plugin the vote belongs to
+     * @param id The vote's ID
+     * @param ballots The number of ballots to cast
+     * @return The vote, which has not been added to the plugin
+     */
+    public Vote vote(final VotePlugin plugin, final String id, final int ballots) {
+        final Vote vote = new Vote(this.hilda, plugin);
+
+        vote.setId(id);
+        vote.setChannelId(Fixture.CHANNEL);
+        vote.setGuildId(Fixture.GUILD);
+        vote.setOpener("Member 0");
+        vote.setOpenerId(Long.toString(Fixture.FIRST_USER));
+        vote.setQuestion("Should this benchmark be run?");
+        vote.setCommencement(System.currentTimeMillis());
+
+        for (int i = 0; i < ballots; i++) {
+            vote.register(Fixture.FIRST_USER + i, Fixture.RESPONSES[i % Fixture.RESPONSES.length]);
+        }
+
+        return vote;
+    }
+
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote.benchmark;
+
+/**
+ * Counts latencies in buckets no wider than a thirty-second of their value, so that tail latency can be read to
+ * within about three percent without keeping every sample.
+ * <p>
+ * A histogram is written by a single thread. Other threads may read it while it is written, but will then see a
+ * slightly stale count.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 32;
+    private static final int BUCKETS = 2 * LatencyHistogram.SUB_BUCKETS + 57 * LatencyHistogram.SUB_BUCKETS;
+
+    private static int bucket(final long nanos) {
+        if (nanos < 2 * LatencyHistogram.SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+
+        final int shift = 63 - Long.numberOfLeadingZeros(nanos) - 5;
+        return 2 * LatencyHistogram.SUB_BUCKETS + (shift - 1) * LatencyHistogram.SUB_BUCKETS + (int) (nanos >>> shift) - LatencyHistogram.SUB_BUCKETS;
+    }
+
+    private static long lowest(final int bucket) {
+        if (bucket < 2 * LatencyHistogram.SUB_BUCKETS) {
+            return bucket;
+        }
+
+        final int offset = bucket - 2 * LatencyHistogram.SUB_BUCKETS;
+        return (long) (offset % LatencyHistogram.SUB_BUCKETS + LatencyHistogram.SUB_BUCKETS) << offset / LatencyHistogram.SUB_BUCKETS + 1;
+    }
+
+    private final long[] counts = new long[LatencyHistogram.BUCKETS];
+    private volatile long count;
+    private long max;
+
+    /**
+     * Adds the counts of another histogram to this one.
+     * @param other The histogram to add
+     */
+    public void add(final LatencyHistogram other) {
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            this.counts[i] += other.counts[i];
+        }
+
+        this.count += other.count;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * Gets the longest latency recorded. This is not reduced by {@link #subtract(LatencyHistogram)}.
+     * @return The latency in nanoseconds
+     */
+    public long getMax() {
+        return this.max;
+    }
+
+    /**
+     * Gets the latency that a fraction of those recorded did not exceed.
+     * @param percentile The fraction, between 0 and 100
+     * @return The latency in nanoseconds, rounded down to its bucket
+     */
+    public long getPercentile(final double percentile) {
+        final long target = (long) Math.ceil(this.count * percentile / 100);
+        long seen = 0;
+
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            seen += this.counts[i];
+
+            if (seen >= target && seen > 0) {
+                return LatencyHistogram.lowest(i);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Records a latency.
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(final long nanos) {
+        this.counts[LatencyHistogram.bucket(nanos)]++;
+        this.max = Math.max(this.max, nanos);
+        this.count++;
+    }
+
+    /**
+     * Takes the counts of an earlier copy of this histogram away from it, leaving what was recorded since.
+     * @param earlier The earlier copy
+     */
+    public void subtract(final LatencyHistogram earlier) {
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            this.counts[i] -= earlier.counts[i];
+        }
+
+        this.count -= earlier.count;
+    }
+
+}
@@ -0,0 +1,568 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote.benchmark;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import ch.jamiete.hilda.vote.Vote;
+import ch.jamiete.hilda.vote.VotePlugin;
+import ch.jamiete.hilda.vote.VoteResponse;
+import ch.jamiete.hilda.vote.commands.VoteBaseCommand;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.TextChannel;
+
+/**
+ * Puts the plugin under the load of a large bot without connecting to Discord. Voters on many threads send commands
+ * to {@link VoteBaseCommand} in channels across {@link SimulatedDiscord}: they start votes, respond to them and change
+ * their minds, list and close them. Some votes are started to expire a few seconds later so that the timer is kept
+ * busy, and the plugin can be disabled and enabled again every so often, as when the bot restarts.
+ * <p>
+ * Progress is printed as the simulation runs, followed by the throughput and latency of each command, how long
+ * restarts took, and how quickly the process allocated memory. Allocation is counted for every thread in the process,
+ * including the simulated voters, so it is best compared between runs rather than read on its own.
+ * <p>
+ * Build the benchmarks as described in their pom, then run, for example:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar ch.jamiete.hilda.vote.benchmark.LoadSimulator --guilds 500 --threads 16
+ * </pre>
+ *
+ * Votes are saved in {@code target/simulator-data}, which is emptied first, unless {@code -Dhilda.vote.data} names
+ * another folder; whatever is saved there is then loaded as if the bot had restarted. The store can be chosen with
+ * {@code -Dhilda.vote.store} as usual. Run with {@code --help} to list the options.
+ */
+public class LoadSimulator {
+    private static final String DATA = "target/simulator-data";
+    private static final VoteResponse[] RESPONSES = VoteResponse.values();
+
+    private enum Action {
+        START("start", 2),
+        REGISTER("register", 78),
+        BATCH("register (batch)", 4),
+        LIST("list", 6),
+        OPEN("open", 4),
+        SERVERLIST("serverlist", 1),
+        CLOSE("close", 3),
+        HISTORY("history", 2);
+
+        private static final Action[] ACTIONS = Action.values();
+        private static final int TOTAL = Action.total();
+
+        private static Action pick(final int roll) {
+            int seen = 0;
+
+            for (final Action action : Action.ACTIONS) {
+                seen += action.weight;
+
+                if (roll < seen) {
+                    return action;
+                }
+            }
+
+            return Action.REGISTER;
+        }
+
+        private static int total() {
+            int total = 0;
+
+            for (final Action action : Action.values()) {
+                total += action.weight;
+            }
+
+            return total;
+        }
+
+        private final String label;
+        private final int weight;
+
+        Action(final String label, final int weight) {
+            this.label = label;
+            this.weight = weight;
+        }
+
+    }
+
+    private static final Map<String, String> OPTIONS = new LinkedHashMap<>();
+
+    static {
+        LoadSimulator.OPTIONS.put("guilds", "200");
+        LoadSimulator.OPTIONS.put("channels", "10");
+        LoadSimulator.OPTIONS.put("members", "500");
+        LoadSimulator.OPTIONS.put("threads", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        LoadSimulator.OPTIONS.put("executor", "4");
+        LoadSimulator.OPTIONS.put("duration", "60");
+        LoadSimulator.OPTIONS.put("warmup", "10");
+        LoadSimulator.OPTIONS.put("restart", "20");
+        LoadSimulator.OPTIONS.put("expiring", "0.25");
+        LoadSimulator.OPTIONS.put("lifetime", "15");
+        LoadSimulator.OPTIONS.put("report", "5");
+    }
+
+    private static final String[] DESCRIPTIONS = {
+            "guilds the bot is in",
+            "channels in each guild",
+            "members in each guild",
+            "threads sending commands",
+            "threads in the executor given to the plugin",
+            "seconds to measure for",
+            "seconds to run before measuring",
+            "seconds between restarts, or 0 to never restart",
+            "fraction of new votes that expire soon after they start",
+            "seconds those votes stay open",
+            "seconds between progress reports"
+    };
+
+    private static void delete(final File file) {
+        final File[] files = file.listFiles();
+
+        if (files != null) {
+            for (final File child : files) {
+                LoadSimulator.delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private static String format(final long nanos) {
+        return String.format("%.3f", nanos / 1_000_000d);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>(LoadSimulator.OPTIONS);
+
+        for (int i = 0; i < args.length; i++) {
+            final String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+
+            if (name == null || !options.containsKey(name) || i + 1 == args.length) {
+                System.err.println("Usage: LoadSimulator [--option value]...");
+                int d = 0;
+
+                for (final Map.Entry<String, String> entry : LoadSimulator.OPTIONS.entrySet()) {
+                    System.err.println(String.format("  --%-10s %s (default %s)", entry.getKey(), LoadSimulator.DESCRIPTIONS[d++], entry.getValue()));
+                }
+
+                System.exit(name != null && name.equals("help") ? 0 : 1);
+                return;
+            }
+
+            options.put(name, args[++i]);
+        }
+
+        // The plugin reads where to save when it is first loaded, so this must happen before it is touched
+        if (System.getProperty("hilda.vote.data") == null) {
+            System.setProperty("hilda.vote.data", LoadSimulator.DATA);
+            LoadSimulator.delete(new File(LoadSimulator.DATA));
+        }
+
+        new LoadSimulator(options).run();
+        System.exit(0);
+    }
+
+    private final int guilds;
+    private final int members;
+    private final int threads;
+    private final int duration;
+    private final int warmup;
+    private final int restart;
+    private final double expiring;
+    private final int lifetime;
+    private final int report;
+
+    private final SimulatedDiscord discord;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ArrayList<Voter> voters = new ArrayList<>();
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder expiries = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LatencyHistogram restarts = new LatencyHistogram();
+    private final Map<Long, Long> allocations = new HashMap<>();
+
+    private volatile VotePlugin plugin;
+    private volatile VoteBaseCommand command;
+    private volatile boolean running = true;
+
+    private long allocated;
+    private long finished;
+
+    private LoadSimulator(final Map<String, String> options) {
+        this.guilds = Integer.parseInt(options.get("guilds"));
+        this.members = Integer.parseInt(options.get("members"));
+        this.threads = Integer.parseInt(options.get("threads"));
+        this.duration = Integer.parseInt(options.get("duration"));
+        this.warmup = Integer.parseInt(options.get("warmup"));
+        this.restart = Integer.parseInt(options.get("restart"));
+        this.expiring = Double.parseDouble(options.get("expiring"));
+        this.lifetime = Integer.parseInt(options.get("lifetime"));
+        this.report = Integer.parseInt(options.get("report"));
+
+        this.discord = new SimulatedDiscord(this.guilds, Integer.parseInt(options.get("channels")), this.members, Integer.parseInt(options.get("executor")));
+    }
+
+    /**
+     * Counts the bytes allocated by every thread so far. Threads that have finished are counted up to the last time
+     * this was called.
+     * @return The bytes allocated, or -1 if the JVM cannot count them
+     */
+    private long allocated() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+
+        final long[] ids = bean.getAllThreadIds();
+        final long[] bytes = bean.getThreadAllocatedBytes(ids);
+
+        for (int i = 0; i < ids.length; i++) {
+            if (bytes[i] >= 0) {
+                final Long last = this.allocations.put(ids[i], bytes[i]);
+                this.allocated += bytes[i] - (last == null ? 0 : last);
+            }
+        }
+
+        return this.allocated;
+    }
+
+    private long[] collections() {
+        final long[] collections = new long[2];
+
+        for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections[0] += Math.max(bean.getCollectionCount(), 0);
+            collections[1] += Math.max(bean.getCollectionTime(), 0);
+        }
+
+        return collections;
+    }
+
+    private void enable() {
+        final VotePlugin plugin = new VotePlugin(this.discord.getHilda());
+
+        plugin.onEnable();
+
+        this.plugin = plugin;
+        this.command = new VoteBaseCommand(this.discord.getHilda(), plugin);
+    }
+
+    private long finished() {
+        return this.finished + this.plugin.getMetrics().getFinish().getCount();
+    }
+
+    private LatencyHistogram[] latencies() {
+        final LatencyHistogram[] latencies = new LatencyHistogram[Action.ACTIONS.length + 1];
+
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+
+        for (final Voter voter : this.voters) {
+            for (int i = 0; i < Action.ACTIONS.length; i++) {
+                latencies[i].add(voter.latencies[i]);
+                latencies[Action.ACTIONS.length].add(voter.latencies[i]);
+            }
+        }
+
+        return latencies;
+    }
+
+    /**
+     * Disables the plugin and enables a new one, while no commands are sent.
+     * @return How long it took in nanoseconds
+     */
+    private long restart() {
+        this.lock.writeLock().lock();
+
+        try {
+            final long start = System.nanoTime();
+
+            this.finished += this.plugin.getMetrics().getFinish().getCount();
+            this.plugin.onDisable();
+            this.enable();
+
+            final long taken = System.nanoTime() - start;
+            this.restarts.record(taken);
+            return taken;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println(String.format("Simulating %d guilds with %d channels and %d members each, %d voters, store %s, saved in %s", this.guilds, this.discord.getChannelCount() / this.guilds, this.members, this.threads, System.getProperty("hilda.vote.store", "file"), VotePlugin.FOLDER));
+
+        this.enable();
+        System.out.println(String.format("Enabled with %d votes loaded", this.plugin.getVoteCount()));
+
+        for (int i = 0; i < this.threads; i++) {
+            final Voter voter = new Voter(i);
+            this.voters.add(voter);
+            voter.start();
+        }
+
+        final long begin = System.nanoTime();
+        final long measure = begin + TimeUnit.SECONDS.toNanos(this.warmup);
+        final long end = measure + TimeUnit.SECONDS.toNanos(this.duration);
+
+        long next_report = begin + TimeUnit.SECONDS.toNanos(this.report);
+        long next_restart = this.restart > 0 ? begin + TimeUnit.SECONDS.toNanos(this.restart) : Long.MAX_VALUE;
+
+        LatencyHistogram[] baseline = null;
+        LatencyHistogram[] last = this.latencies();
+        long baseline_allocated = 0, last_allocated = this.allocated();
+        long[] baseline_collections = null;
+        long baseline_changes = 0, baseline_expiries = 0, baseline_finished = 0, last_time = begin;
+
+        while (true) {
+            final long now = System.nanoTime();
+
+            if (baseline == null && now >= measure) {
+                baseline = this.latencies();
+                baseline_allocated = this.allocated();
+                baseline_collections = this.collections();
+                baseline_changes = this.changes.sum();
+                baseline_expiries = this.expiries.sum();
+                baseline_finished = this.finished();
+                System.out.println("Warmed up; measuring for " + this.duration + " seconds");
+            }
+
+            if (now >= end) {
+                break;
+            }
+
+            if (now >= next_restart) {
+                final long taken = this.restart();
+                System.out.println(String.format("Restarted in %s ms with %d votes loaded", LoadSimulator.format(taken), this.plugin.getVoteCount()));
+                next_restart += TimeUnit.SECONDS.toNanos(this.restart);
+            }
+
+            if (now >= next_report) {
+                final LatencyHistogram[] current = this.latencies();
+                final LatencyHistogram interval = new LatencyHistogram();
+                final long allocated = this.allocated();
+                final double seconds = (now - last_time) / 1e9;
+
+                interval.add(current[Action.ACTIONS.length]);
+                interval.subtract(last[Action.ACTIONS.length]);
+
+                System.out.println(String.format("[%4ds] %9.0f cmd/s  p50 %s ms  p99 %s ms  p99.9 %s ms  alloc %s MB/s  open %d  finished %d", TimeUnit.NANOSECONDS.toSeconds(now - begin), interval.getCount() / seconds, LoadSimulator.format(interval.getPercentile(50)), LoadSimulator.format(interval.getPercentile(99)), LoadSimulator.format(interval.getPercentile(99.9)), allocated < 0 ? "n/a" : String.format("%.1f", (allocated - last_allocated) / seconds / 1e6), this.plugin.getVoteCount(), this.finished()));
+
+                last = current;
+                last_allocated = allocated;
+                last_time = now;
+                next_report += TimeUnit.SECONDS.toNanos(this.report);
+            }
+
+            Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(Math.min(next_report, next_restart), baseline == null ? measure : end) - System.nanoTime())));
+        }
+
+        this.running = false;
+
+        for (final Voter voter : this.voters) {
+            voter.join();
+        }
+
+        final double seconds = (System.nanoTime() - measure) / 1e9;
+        final LatencyHistogram[] latencies = this.latencies();
+        final long allocated = this.allocated();
+        final long[] collections = this.collections();
+
+        System.out.println();
+        System.out.println(String.format("%-18s %10s %10s %9s %9s %9s %9s %9s", "Command", "Count", "Per sec", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "Max ms"));
+
+        for (int i = 0; i < latencies.length; i++) {
+            final LatencyHistogram latency = latencies[i];
+            latency.subtract(baseline[i]);
+
+            System.out.println(String.format("%-18s %10d %10.0f %9s %9s %9s %9s %9s", i == Action.ACTIONS.length ? "all" : Action.ACTIONS[i].label, latency.getCount(), latency.getCount() / seconds, LoadSimulator.format(latency.getPercentile(50)), LoadSimulator.format(latency.getPercentile(90)), LoadSimulator.format(latency.getPercentile(99)), LoadSimulator.format(latency.getPercentile(99.9)), LoadSimulator.format(latency.getMax())));
+        }
+
+        final long commands = latencies[Action.ACTIONS.length].getCount();
+
+        System.out.println();
+        System.out.println(String.format("Ballots changed: %d; votes started to expire: %d; votes finished: %d; open at the end: %d; commands that threw: %d", this.changes.sum() - baseline_changes, this.expiries.sum() - baseline_expiries, this.finished() - baseline_finished, this.plugin.getVoteCount(), this.failures.sum()));
+
+        if (this.restarts.getCount() > 0) {
+            System.out.println(String.format("Restarts: %d, p50 %s ms, max %s ms", this.restarts.getCount(), LoadSimulator.format(this.restarts.getPercentile(50)), LoadSimulator.format(this.restarts.getMax())));
+        }
+
+        if (allocated >= 0) {
+            final long bytes = allocated - baseline_allocated;
+            System.out.println(String.format("Allocated: %.1f MB/s, %d bytes per command", bytes / seconds / 1e6, commands == 0 ? 0 : bytes / commands));
+        }
+
+        System.out.println(String.format("Garbage collection: %d collections taking %d ms", collections[0] - baseline_collections[0], collections[1] - baseline_collections[1]));
+
+        this.plugin.onDisable();
+        this.discord.shutdown();
+    }
+
+    /**
+     * A thread that sends commands as one member after another.
+     */
+    private final class Voter extends Thread {
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Action.ACTIONS.length];
+
+        private Voter(final int index) {
+            super("simulator-voter-" + index);
+
+            this.setDaemon(true);
+
+            for (int i = 0; i < this.latencies.length; i++) {
+                this.latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        /**
+         * Starts a vote through the plugin rather than a command, so that it can expire within the simulation.
+         */
+        private void expiring(final TextChannel channel, final Member member) {
+            final VotePlugin plugin = LoadSimulator.this.plugin;
+            final Vote vote = new Vote(LoadSimulator.this.discord.getHilda(), plugin);
+
+            vote.setChannelId(channel.getIdLong());
+            vote.setGuildId(channel.getGuild().getIdLong());
+            vote.setOpener(member.getEffectiveName());
+            vote.setOpenerId(member.getUser().getId());
+            vote.setQuestion("Should this vote expire?");
+            vote.setCommencement(System.currentTimeMillis() - VotePlugin.MAXIMUM_LENGTH + TimeUnit.SECONDS.toMillis(LoadSimulator.this.lifetime));
+            vote.setId(plugin.getFreshID());
+
+            plugin.addVote(vote);
+            LoadSimulator.this.discord.getHilda().getExecutor().execute(() -> plugin.validate(vote));
+            LoadSimulator.this.expiries.increment();
+        }
+
+        private Vote pick(final Collection<Vote> votes, final ThreadLocalRandom random) {
+            if (votes.isEmpty()) {
+                return null;
+            }
+
+            final Iterator<Vote> iterator = votes.iterator();
+
+            for (int skip = random.nextInt(votes.size()); skip > 0 && iterator.hasNext(); skip--) {
+                iterator.next();
+            }
+
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        @Override
+        public void run() {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            while (LoadSimulator.this.running) {
+                LoadSimulator.this.lock.readLock().lock();
+
+                try {
+                    this.step(random);
+                } catch (final RuntimeException e) {
+                    LoadSimulator.this.failures.increment();
+                } finally {
+                    LoadSimulator.this.lock.readLock().unlock();
+                }
+            }
+        }
+
+        private void step(final ThreadLocalRandom random) {
+            final VotePlugin plugin = LoadSimulator.this.plugin;
+            final int index = random.nextInt(LoadSimulator.this.discord.getChannelCount());
+            final TextChannel channel = LoadSimulator.this.discord.getChannel(index);
+            final Vote vote = this.pick(plugin.getChannelVotes(channel.getIdLong()), random);
+
+            Action action = Action.pick(random.nextInt(Action.TOTAL));
+            Member member = LoadSimulator.this.discord.getMember(index, random.nextInt(LoadSimulator.this.members));
+            final String[] arguments;
+
+            if (vote == null && action != Action.LIST && action != Action.SERVERLIST && action != Action.HISTORY) {
+                action = Action.START;
+            }
+
+            switch (action) {
+                case START:
+                    if (random.nextDouble() < LoadSimulator.this.expiring) {
+                        this.expiring(channel, member);
+                        return;
+                    }
+
+                    arguments = new String[] { "start", "Should", "we", "ship", "build", Integer.toString(random.nextInt(1000)) };
+                    break;
+
+                case REGISTER:
+                    final VoteResponse response = LoadSimulator.RESPONSES[random.nextInt(LoadSimulator.RESPONSES.length)];
+                    final VoteResponse previous = vote.getResponse(member.getUser().getIdLong());
+
+                    if (previous != null && previous != response) {
+                        LoadSimulator.this.changes.increment();
+                    }
+
+                    arguments = new String[] { "register", vote.getId(), response.name().toLowerCase() };
+                    break;
+
+                case BATCH:
+                    final ArrayList<String> batch = new ArrayList<>();
+                    batch.add("register");
+
+                    for (final Vote open : plugin.getChannelVotes(channel.getIdLong())) {
+                        batch.add(open.getId());
+                        batch.add(LoadSimulator.RESPONSES[random.nextInt(LoadSimulator.RESPONSES.length)].name().toLowerCase());
+                    }
+
+                    arguments = batch.toArray(new String[batch.size()]);
+                    break;
+
+                case LIST:
+                case SERVERLIST:
+                    // Most members only look at the first page
+                    arguments = random.nextInt(4) == 0 ? new String[] { action.label, Integer.toString(2 + random.nextInt(4)) } : new String[] { action.label };
+                    break;
+
+                case CLOSE:
+                    final Member opener = LoadSimulator.this.discord.getMember(Long.parseLong(vote.getOpenerId()));
+                    member = opener == null ? member : opener;
+                    arguments = new String[] { "close", vote.getId() };
+                    break;
+
+                default:
+                    arguments = new String[] { action.label };
+                    break;
+            }
+
+            final VoteBaseCommand command = LoadSimulator.this.command;
+            final long start = System.nanoTime();
+
+            command.execute(LoadSimulator.this.discord.message(channel, member), arguments, "v");
+
+            this.latencies[action.ordinal()].record(System.nanoTime() - start);
+        }
+
+    }
+
+}
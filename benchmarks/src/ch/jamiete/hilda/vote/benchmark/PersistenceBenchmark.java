@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ch.jamiete.hilda.vote.VotePlugin;
+
+/**
+ * Measures saving every vote to disk and loading them again when the plugin is enabled. Loading only covers
+ * {@link VotePlugin#onEnable()} itself; votes are validated in the background afterwards.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dhilda.vote.data=target/benchmark-data")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PersistenceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Votes {
+        @Param({ "100", "1000" })
+        public int votes;
+
+        @Param({ "100", "1000" })
+        public int ballots;
+
+        private Fixture fixture;
+        private VotePlugin plugin;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.fixture = new Fixture(this.ballots);
+            this.plugin = PersistenceBenchmark.populate(this.fixture, this.votes, this.ballots);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.plugin.onDisable();
+            this.fixture.shutdown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Saved {
+        @Param({ "100", "1000" })
+        public int votes;
+
+        @Param({ "100", "1000" })
+        public int ballots;
+
+        private Fixture fixture;
+        private VotePlugin loaded;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            this.fixture = new Fixture(this.ballots);
+
+            // Leave nothing open in the folder while loading
+            PersistenceBenchmark.populate(this.fixture, this.votes, this.ballots).onDisable();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.fixture.shutdown();
+        }
+
+        @TearDown(Level.Invocation)
+        public void unload() {
+            if (this.loaded != null) {
+                // Checkpoint so that the journal segment each load opens is discarded
+                this.loaded.save();
+                this.loaded.onDisable();
+                this.loaded = null;
+            }
+        }
+    }
+
+    private static VotePlugin populate(final Fixture fixture, final int votes, final int ballots) {
+        Fixture.clean();
+
+        final VotePlugin plugin = fixture.enable();
+
+        for (int i = 0; i < votes; i++) {
+            plugin.addVote(fixture.vote(plugin, "p" + i, ballots));
+        }
+
+        plugin.save();
+        return plugin;
+    }
+
+    @Benchmark
+    public VotePlugin load(final Saved saved) {
+        saved.loaded = saved.fixture.enable();
+        return saved.loaded;
+    }
+
+    @Benchmark
+    public void save(final Votes votes) {
+        votes.plugin.save();
+    }
+
+}
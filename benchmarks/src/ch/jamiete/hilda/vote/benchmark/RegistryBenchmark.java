@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ch.jamiete.hilda.vote.Vote;
+import ch.jamiete.hilda.vote.VotePlugin;
+
+/**
+ * Measures looking votes up and allocating IDs for new votes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Dhilda.vote.data=target/benchmark-data")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RegistryBenchmark {
+    @Param({ "0", "1000", "100000" })
+    public int votes;
+
+    private Fixture fixture;
+    private VotePlugin plugin;
+    private String[] ids;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Fixture.clean();
+
+        this.fixture = new Fixture(100);
+        this.plugin = this.fixture.enable();
+        this.ids = new String[Math.max(this.votes, 1)];
+
+        for (int i = 0; i < this.votes; i++) {
+            final Vote vote = this.fixture.vote(this.plugin, this.plugin.getFreshID(), 0);
+
+            this.plugin.addVote(vote);
+            this.plugin.validate(vote);
+            this.ids[i] = vote.getId();
+        }
+
+        if (this.votes == 0) {
+            this.ids[0] = "zz";
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.plugin.onDisable();
+        this.fixture.shutdown();
+    }
+
+    @Benchmark
+    public String getFreshID() {
+        final String id = this.plugin.getFreshID();
+
+        this.plugin.getIdAllocator().release(id);
+        return id;
+    }
+
+    @Benchmark
+    public Vote getVoteByID() {
+        return this.plugin.getVoteByID(this.ids[this.next++ % this.ids.length]);
+    }
+
+}
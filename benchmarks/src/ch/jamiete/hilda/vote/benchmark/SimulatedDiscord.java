@@ -0,0 +1,539 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.mockito.Mockito;
+import ch.jamiete.hilda.Hilda;
+import ch.jamiete.hilda.commands.CommandManager;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.requests.restaction.AuditableRestAction;
+import net.dv8tion.jda.api.requests.restaction.MessageAction;
+
+/**
+ * In-memory stand-ins for Hilda and a bot that is in many guilds, each with the same number of channels and members.
+ * Every member can see every channel in their guild and may use every command.
+ * <p>
+ * Unlike {@link Fixture}, the Discord objects are dynamic proxies rather than mocks, so that a hundred thousand
+ * members fit in a small heap and calling them costs little next to the plugin itself. Anything the plugin sends is
+ * accepted and dropped; a message that is sent is given a fresh ID.
+ */
+public class SimulatedDiscord {
+    public static final long FIRST_GUILD = 400000000000000000L;
+    public static final long FIRST_CHANNEL = 410000000000000000L;
+    public static final long FIRST_USER = 420000000000000000L;
+    public static final long SELF = 430000000000000000L;
+
+    private static final long FIRST_MESSAGE = 440000000000000000L;
+
+    /**
+     * The result of every request to Discord, which succeeds at once.
+     */
+    private final Object action;
+    private final AtomicLong messages = new AtomicLong(SimulatedDiscord.FIRST_MESSAGE);
+
+    private final Hilda hilda;
+    private final JDA bot;
+    private final ScheduledExecutorService executor;
+    private final int channels;
+    private final int members;
+    private final Guild[] guilds;
+    private final TextChannel[] channel;
+    private final Member[][] member;
+
+    private static Object fallback(final Class<?> type) {
+        if (!type.isPrimitive()) {
+            return List.class.equals(type) ? Collections.emptyList() : null;
+        }
+
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0d;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        }
+
+        return null;
+    }
+
+    private static long id(final Object argument) {
+        return argument instanceof String ? Long.parseLong((String) argument) : ((Number) argument).longValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(SimulatedDiscord.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    /**
+     * @param guilds The number of guilds the bot is in
+     * @param channels The number of channels in each guild
+     * @param members The number of members in each guild
+     * @param threads The number of threads in the executor given to the plugin
+     */
+    public SimulatedDiscord(final int guilds, final int channels, final int members, final int threads) {
+        this.channels = channels;
+        this.members = members;
+        this.guilds = new Guild[guilds];
+        this.channel = new TextChannel[guilds * channels];
+        this.member = new Member[guilds][];
+
+        this.action = Proxy.newProxyInstance(SimulatedDiscord.class.getClassLoader(), new Class<?>[] { MessageAction.class, AuditableRestAction.class }, new Action());
+
+        final AtomicInteger count = new AtomicInteger();
+
+        this.executor = Executors.newScheduledThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "simulator-executor-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (int g = 0; g < guilds; g++) {
+            final FakeGuild handler = new FakeGuild(SimulatedDiscord.FIRST_GUILD + ((long) g << 22), "Guild " + g);
+            final Guild guild = SimulatedDiscord.proxy(Guild.class, handler);
+            final Member[] list = new Member[members];
+            final TextChannel[] text = new TextChannel[channels];
+
+            for (int m = 0; m < members; m++) {
+                final long id = SimulatedDiscord.FIRST_USER + (long) g * members + m;
+                final User user = SimulatedDiscord.proxy(User.class, new FakeUser(id, "user" + id));
+
+                list[m] = SimulatedDiscord.proxy(Member.class, new FakeMember(user, guild, "Member " + m));
+            }
+
+            for (int c = 0; c < channels; c++) {
+                final int index = g * channels + c;
+                text[c] = SimulatedDiscord.proxy(TextChannel.class, new FakeChannel(SimulatedDiscord.FIRST_CHANNEL + ((long) index << 22), guild, "channel-" + c));
+                this.channel[index] = text[c];
+            }
+
+            final User self = SimulatedDiscord.proxy(User.class, new FakeUser(SimulatedDiscord.SELF, "Hilda"));
+
+            handler.self = SimulatedDiscord.proxy(Member.class, new FakeMember(self, guild, "Hilda"));
+            handler.members = Collections.unmodifiableList(Arrays.asList(list));
+            handler.channels = Collections.unmodifiableList(Arrays.asList(text));
+
+            this.guilds[g] = guild;
+            this.member[g] = list;
+        }
+
+        this.bot = SimulatedDiscord.proxy(JDA.class, new FakeBot());
+
+        // Hilda is a class rather than an interface, so it cannot be a proxy
+        this.hilda = Mockito.mock(Hilda.class, Mockito.withSettings().stubOnly());
+
+        Mockito.when(this.hilda.getBot()).thenReturn(this.bot);
+        Mockito.when(this.hilda.getExecutor()).thenReturn(this.executor);
+        Mockito.when(this.hilda.getCommandManager()).thenReturn(Mockito.mock(CommandManager.class, Mockito.withSettings().stubOnly()));
+    }
+
+    /**
+     * Gets a channel.
+     * @param index The channel's index, between 0 and {@link #getChannelCount()}
+     * @return The channel
+     */
+    public TextChannel getChannel(final int index) {
+        return this.channel[index];
+    }
+
+    /**
+     * Gets a channel by its ID.
+     * @param id The channel's ID
+     * @return The channel, or {@code null} if there is no such channel
+     */
+    public TextChannel getChannel(final long id) {
+        final long offset = id - SimulatedDiscord.FIRST_CHANNEL;
+
+        if (offset < 0 || (offset & (1 << 22) - 1) != 0 || offset >> 22 >= this.channel.length) {
+            return null;
+        }
+
+        return this.channel[(int) (offset >> 22)];
+    }
+
+    public int getChannelCount() {
+        return this.channel.length;
+    }
+
+    public Hilda getHilda() {
+        return this.hilda;
+    }
+
+    /**
+     * Gets a member of the guild a channel is in.
+     * @param channel The channel's index
+     * @param index The member's index, between 0 and the number of members in each guild
+     * @return The member
+     */
+    public Member getMember(final int channel, final int index) {
+        return this.member[channel / this.channels][index];
+    }
+
+    /**
+     * Gets a member by their user ID.
+     * @param id The user's ID
+     * @return The member, or {@code null} if there is no such user
+     */
+    public Member getMember(final long id) {
+        final long offset = id - SimulatedDiscord.FIRST_USER;
+
+        if (offset < 0 || offset >= (long) this.guilds.length * this.members) {
+            return null;
+        }
+
+        return this.member[(int) (offset / this.members)][(int) (offset % this.members)];
+    }
+
+    /**
+     * Creates a message that a member sent in a channel.
+     * @param channel The channel
+     * @param member The member who sent it
+     * @return The message
+     */
+    public Message message(final TextChannel channel, final Member member) {
+        return SimulatedDiscord.proxy(Message.class, new FakeMessage(this.messages.incrementAndGet(), channel, member));
+    }
+
+    /**
+     * Stops the executor given to the plugin.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * A request to Discord. Queuing it succeeds at once, and anything waiting for a message is given a new one.
+     */
+    private final class Action implements InvocationHandler {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            switch (method.getName()) {
+                case "queue":
+                    if (args != null && args[0] != null) {
+                        ((Consumer<Object>) args[0]).accept(SimulatedDiscord.this.message(null, null));
+                    }
+
+                    return null;
+
+                case "complete":
+                    return SimulatedDiscord.this.message(null, null);
+
+                case "equals":
+                    return proxy == args[0];
+
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+
+                case "toString":
+                    return "Action";
+
+                default:
+                    return method.getReturnType().isInstance(proxy) ? proxy : SimulatedDiscord.fallback(method.getReturnType());
+            }
+        }
+
+    }
+
+    /**
+     * Something in Discord with an ID. Methods it does not know return nothing, or a request that succeeds.
+     */
+    private abstract class Fake implements InvocationHandler {
+        protected final long id;
+
+        protected Fake(final long id) {
+            this.id = id;
+        }
+
+        protected Object answer(final Object proxy, final Method method, final Object[] args) {
+            final Class<?> type = method.getReturnType();
+            return type.isInstance(SimulatedDiscord.this.action) ? SimulatedDiscord.this.action : SimulatedDiscord.fallback(type);
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            switch (method.getName()) {
+                case "getId":
+                    return Long.toString(this.id);
+
+                case "getIdLong":
+                    return this.id;
+
+                case "equals":
+                    return proxy == args[0];
+
+                case "hashCode":
+                    return Long.hashCode(this.id);
+
+                case "toString":
+                    return this.getClass().getSimpleName() + ":" + this.id;
+
+                default:
+                    return this.answer(proxy, method, args);
+            }
+        }
+
+    }
+
+    private final class FakeBot implements InvocationHandler {
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            switch (method.getName()) {
+                case "getTextChannelById":
+                    return SimulatedDiscord.this.getChannel(SimulatedDiscord.id(args[0]));
+
+                case "getUserById":
+                    final Member member = SimulatedDiscord.this.getMember(SimulatedDiscord.id(args[0]));
+                    return member == null ? null : member.getUser();
+
+                case "getGuildById":
+                    final long offset = SimulatedDiscord.id(args[0]) - SimulatedDiscord.FIRST_GUILD;
+                    return offset < 0 || offset >> 22 >= SimulatedDiscord.this.guilds.length ? null : SimulatedDiscord.this.guilds[(int) (offset >> 22)];
+
+                case "equals":
+                    return proxy == args[0];
+
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+
+                case "toString":
+                    return "JDA";
+
+                default:
+                    return SimulatedDiscord.fallback(method.getReturnType());
+            }
+        }
+
+    }
+
+    private final class FakeChannel extends Fake {
+        private final Guild guild;
+        private final String name;
+
+        private FakeChannel(final long id, final Guild guild, final String name) {
+            super(id);
+
+            this.guild = guild;
+            this.name = name;
+        }
+
+        @Override
+        protected Object answer(final Object proxy, final Method method, final Object[] args) {
+            switch (method.getName()) {
+                case "canTalk":
+                    return true;
+
+                case "getAsMention":
+                    return "<#" + this.id + ">";
+
+                case "getGuild":
+                    return this.guild;
+
+                case "getMembers":
+                    return this.guild.getMembers();
+
+                case "getName":
+                    return this.name;
+
+                default:
+                    return super.answer(proxy, method, args);
+            }
+        }
+
+    }
+
+    private final class FakeGuild extends Fake {
+        private final String name;
+        private List<TextChannel> channels;
+        private List<Member> members;
+        private Member self;
+
+        private FakeGuild(final long id, final String name) {
+            super(id);
+
+            this.name = name;
+        }
+
+        private Member member(final long user) {
+            final Member member = SimulatedDiscord.this.getMember(user);
+            return member == null || member.getGuild().getIdLong() != this.id ? null : member;
+        }
+
+        @Override
+        protected Object answer(final Object proxy, final Method method, final Object[] args) {
+            switch (method.getName()) {
+                case "getMember":
+                    final long user = ((User) args[0]).getIdLong();
+                    return user == SimulatedDiscord.SELF ? this.self : this.member(user);
+
+                case "getMemberById":
+                    return this.member(SimulatedDiscord.id(args[0]));
+
+                case "getMembers":
+                    return this.members;
+
+                case "getName":
+                    return this.name;
+
+                case "getSelfMember":
+                    return this.self;
+
+                case "getTextChannelById":
+                    final TextChannel channel = SimulatedDiscord.this.getChannel(SimulatedDiscord.id(args[0]));
+                    return channel == null || channel.getGuild() != proxy ? null : channel;
+
+                case "getTextChannels":
+                    return this.channels;
+
+                default:
+                    return super.answer(proxy, method, args);
+            }
+        }
+
+    }
+
+    private final class FakeMember extends Fake {
+        private final User user;
+        private final Guild guild;
+        private final String name;
+
+        private FakeMember(final User user, final Guild guild, final String name) {
+            super(user.getIdLong());
+
+            this.user = user;
+            this.guild = guild;
+            this.name = name;
+        }
+
+        @Override
+        protected Object answer(final Object proxy, final Method method, final Object[] args) {
+            switch (method.getName()) {
+                case "getAsMention":
+                    return "<@" + this.id + ">";
+
+                case "getEffectiveName":
+                    return this.name;
+
+                case "getGuild":
+                    return this.guild;
+
+                case "getUser":
+                    return this.user;
+
+                case "hasPermission":
+                    return true;
+
+                default:
+                    return super.answer(proxy, method, args);
+            }
+        }
+
+    }
+
+    private final class FakeMessage extends Fake {
+        private final TextChannel channel;
+        private final Member member;
+
+        private FakeMessage(final long id, final TextChannel channel, final Member member) {
+            super(id);
+
+            this.channel = channel;
+            this.member = member;
+        }
+
+        @Override
+        protected Object answer(final Object proxy, final Method method, final Object[] args) {
+            switch (method.getName()) {
+                case "getAuthor":
+                    return this.member == null ? null : this.member.getUser();
+
+                case "getChannel":
+                case "getTextChannel":
+                    return this.channel;
+
+                case "getGuild":
+                    return this.channel == null ? null : this.channel.getGuild();
+
+                case "getMember":
+                    return this.member;
+
+                case "isFromGuild":
+                    return this.channel != null;
+
+                default:
+                    return super.answer(proxy, method, args);
+            }
+        }
+
+    }
+
+    private final class FakeUser extends Fake {
+        private final String name;
+
+        private FakeUser(final long id, final String name) {
+            super(id);
+
+            this.name = name;
+        }
+
+        @Override
+        protected Object answer(final Object proxy, final Method method, final Object[] args) {
+            switch (method.getName()) {
+                case "getAsMention":
+                    return "<@" + this.id + ">";
+
+                case "getAsTag":
+                    return this.name + "#0001";
+
+                case "getName":
+                    return this.name;
+
+                default:
+                    return super.answer(proxy, method, args);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,344 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.util.Arrays;
+
+/**
+ * A map from user snowflakes to responses, stored in primitive arrays with open addressing. Each slot costs nine bytes
+ * rather than a map entry, a string and a boxed key. A stripe doubles once it is three quarters full, so a ballot takes
+ * between 12 and 24 bytes of table space: 50,000 ballots fill 16 stripes of 8,192 slots, about 1.18 MB.
+ * <p>
+ * The map is split into stripes, each guarded by its own monitor, so that ballots from different users rarely contend.
+ * Responses are stored as their ordinal and -1 means no response. A snowflake of zero cannot be stored.
+ */
+public class BallotMap {
+    private static final int STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * Notified of every change while the stripe holding the user is locked, so that changes to the same user are
+     * observed in the order they were made.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void changed(long user, int previous, int response);
+    }
+
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(long user, int response);
+    }
+
+    /**
+     * A copy of the ballots in a map at one moment. The user at each index gave the response at the same index.
+     */
+    public static final class Snapshot {
+        public final long[] users;
+        public final byte[] responses;
+
+        private Snapshot(final long[] users, final byte[] responses) {
+            this.users = users;
+            this.responses = responses;
+        }
+
+        public int size() {
+            return this.users.length;
+        }
+    }
+
+    private static final class Stripe {
+        private long[] keys = new long[BallotMap.INITIAL_CAPACITY];
+        private byte[] values = new byte[BallotMap.INITIAL_CAPACITY];
+        private int size;
+
+        private int find(final long key) {
+            final int mask = this.keys.length - 1;
+            int slot = BallotMap.mix(key) & mask;
+
+            while (this.keys[slot] != 0) {
+                if (this.keys[slot] == key) {
+                    return slot;
+                }
+
+                slot = slot + 1 & mask;
+            }
+
+            return -1 - slot;
+        }
+
+        private void grow() {
+            final long[] keys = this.keys;
+            final byte[] values = this.values;
+
+            this.keys = new long[keys.length << 1];
+            this.values = new byte[keys.length << 1];
+
+            final int mask = this.keys.length - 1;
+
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    int slot = BallotMap.mix(keys[i]) & mask;
+
+                    while (this.keys[slot] != 0) {
+                        slot = slot + 1 & mask;
+                    }
+
+                    this.keys[slot] = keys[i];
+                    this.values[slot] = values[i];
+                }
+            }
+        }
+
+        private void delete(int slot) {
+            // Shift later entries in the run back so that lookups never stop early at the gap
+            final int mask = this.keys.length - 1;
+            int next = slot + 1 & mask;
+
+            while (this.keys[next] != 0) {
+                final int home = BallotMap.mix(this.keys[next]) & mask;
+
+                if ((next - home & mask) >= (next - slot & mask)) {
+                    this.keys[slot] = this.keys[next];
+                    this.values[slot] = this.values[next];
+                    slot = next;
+                }
+
+                next = next + 1 & mask;
+            }
+
+            this.keys[slot] = 0;
+            this.size--;
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[BallotMap.STRIPES];
+    private final Listener listener;
+
+    public BallotMap(final Listener listener) {
+        this.listener = listener;
+
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    private static int mix(final long key) {
+        // Snowflakes are timestamps in the high bits, so spread the low bits too
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) h ^ (int) (h >>> 16);
+    }
+
+    private Stripe stripe(final long key) {
+        return this.stripes[BallotMap.mix(key) >>> 28 & BallotMap.STRIPES - 1];
+    }
+
+    /**
+     * Removes every entry without notifying the listener.
+     */
+    public void clear() {
+        for (final Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                stripe.keys = new long[BallotMap.INITIAL_CAPACITY];
+                stripe.values = new byte[BallotMap.INITIAL_CAPACITY];
+                stripe.size = 0;
+            }
+        }
+    }
+
+    public boolean containsKey(final long user) {
+        return this.get(user) != -1;
+    }
+
+    /**
+     * Visits every ballot. Each stripe is visited under its lock, so the visitor must not modify this map.
+     * @param visitor The visitor
+     */
+    public void forEach(final Visitor visitor) {
+        for (final Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.keys.length; i++) {
+                    if (stripe.keys[i] != 0) {
+                        visitor.visit(stripe.keys[i], stripe.values[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets a user's response.
+     * @param user The user's snowflake
+     * @return The ordinal of the response or -1 if the user has not voted
+     */
+    public int get(final long user) {
+        final Stripe stripe = this.stripe(user);
+
+        synchronized (stripe) {
+            final int slot = stripe.find(user);
+            return slot < 0 ? -1 : stripe.values[slot];
+        }
+    }
+
+    /**
+     * Runs an action with the stripe holding a user locked, so that it is ordered with every change to that user's
+     * entry. The action may read and change the user's entry, but should not touch other users.
+     * @param user The user's snowflake
+     * @param action The action
+     */
+    public void locked(final long user, final Runnable action) {
+        synchronized (this.stripe(user)) {
+            action.run();
+        }
+    }
+
+    /**
+     * Sets a user's response.
+     * @param user The user's snowflake, which must not be zero
+     * @param response The ordinal of the response
+     * @return The ordinal of the previous response or -1 if the user had not voted
+     */
+    public int put(final long user, final int response) {
+        if (user == 0) {
+            throw new IllegalArgumentException("Snowflake cannot be zero");
+        }
+
+        final Stripe stripe = this.stripe(user);
+
+        synchronized (stripe) {
+            int slot = stripe.find(user);
+            final int previous;
+
+            if (slot >= 0) {
+                previous = stripe.values[slot];
+            } else {
+                previous = -1;
+
+                if (stripe.size + 1 > stripe.keys.length * 3 >> 2) {
+                    stripe.grow();
+                    slot = stripe.find(user);
+                }
+
+                slot = -1 - slot;
+                stripe.keys[slot] = user;
+                stripe.size++;
+            }
+
+            stripe.values[slot] = (byte) response;
+
+            if (this.listener != null) {
+                this.listener.changed(user, previous, response);
+            }
+
+            return previous;
+        }
+    }
+
+    /**
+     * Removes a user's response.
+     * @param user The user's snowflake
+     * @return The ordinal of the response removed or -1 if the user had not voted
+     */
+    public int remove(final long user) {
+        final Stripe stripe = this.stripe(user);
+
+        synchronized (stripe) {
+            final int slot = stripe.find(user);
+
+            if (slot < 0) {
+                return -1;
+            }
+
+            final int previous = stripe.values[slot];
+            stripe.delete(slot);
+
+            if (this.listener != null) {
+                this.listener.changed(user, previous, -1);
+            }
+
+            return previous;
+        }
+    }
+
+    /**
+     * Removes a user's response only if it is the one given.
+     * @param user The user's snowflake
+     * @param response The ordinal of the response to remove
+     * @return Whether the response was removed
+     */
+    public boolean remove(final long user, final int response) {
+        final Stripe stripe = this.stripe(user);
+
+        synchronized (stripe) {
+            final int slot = stripe.find(user);
+
+            if (slot < 0 || stripe.values[slot] != response) {
+                return false;
+            }
+
+            stripe.delete(slot);
+
+            if (this.listener != null) {
+                this.listener.changed(user, response, -1);
+            }
+
+            return true;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (final Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Copies every ballot into arrays. Changes made while copying may or may not be seen.
+     * @return The ballots
+     */
+    public Snapshot snapshot() {
+        long[] users = new long[this.size()];
+        byte[] responses = new byte[users.length];
+        int count = 0;
+
+        for (final Stripe stripe : this.stripes) {
+            synchronized (stripe) {
+                if (count + stripe.size > users.length) {
+                    users = Arrays.copyOf(users, count + stripe.size);
+                    responses = Arrays.copyOf(responses, count + stripe.size);
+                }
+
+                for (int i = 0; i < stripe.keys.length; i++) {
+                    if (stripe.keys[i] != 0) {
+                        users[count] = stripe.keys[i];
+                        responses[count] = stripe.values[i];
+                        count++;
+                    }
+                }
+            }
+        }
+
+        return new Snapshot(Arrays.copyOf(users, count), Arrays.copyOf(responses, count));
+    }
+
+}
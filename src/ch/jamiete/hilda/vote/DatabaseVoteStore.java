@@ -0,0 +1,509 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Saves a partition's votes in an embedded H2 database kept in the partition's folder.
+ * <p>
+ * Votes and ballots are kept in their own tables, and each change is written as the row it affects: registering a
+ * ballot upserts one row rather than saving the whole vote. Changes are queued and written by a single thread, one
+ * transaction per batch, so recording them never waits for the disk. Votes are indexed by guild and channel, so they
+ * can be read back a guild, channel or vote at a time without loading the rest. A batch that fails is rolled back and retried,
+ * backing off up to 30 seconds between attempts; each retry rewrites every vote from the heap before
+ * applying the changes queued since, so nothing in the failed batch is lost.
+ */
+public class DatabaseVoteStore implements VoteStore {
+    private static final String SELECT_VOTES = "SELECT id, channel_id, guild_id, opener, opener_id, avatar, question, percent, commencement, message_id FROM votes";
+    private static final String SELECT_BALLOTS = "SELECT vote_id, user_id, response FROM ballots";
+    private static final String MERGE_VOTE = "MERGE INTO votes (id, channel_id, guild_id, opener, opener_id, avatar, question, percent, commencement, message_id) KEY (id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String MERGE_BALLOT = "MERGE INTO ballots (vote_id, user_id, response) KEY (vote_id, user_id) VALUES (?, ?, ?)";
+
+    /**
+     * A change waiting to be written.
+     */
+    private interface Update {
+        void apply() throws SQLException;
+    }
+
+    private static final long RETRY = 1000; // 1 second
+    private static final long MAXIMUM_RETRY = 30000; // 30 seconds
+
+    private final VotePlugin plugin;
+    private final VotePartition partition;
+    private final File file;
+    private final BlockingQueue<Update> queue = new LinkedBlockingQueue<>();
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final Thread writer;
+
+    private Connection connection;
+    private volatile boolean running = true;
+    private volatile long duration = -1;
+
+    /**
+     * Whether a batch has failed since the last successful write, so the next must rewrite every vote.
+     */
+    private volatile boolean resync = false;
+
+    public DatabaseVoteStore(final VotePlugin plugin, final VotePartition partition) {
+        this.plugin = plugin;
+        this.partition = partition;
+        this.file = new File(partition.getFolder(), "votes");
+
+        this.writer = new Thread(this::run, VoteShards.isEnabled() ? "vote-database-" + partition.getShard() : "vote-database");
+        this.writer.setDaemon(true);
+    }
+
+    private static void bind(final PreparedStatement statement, final Object... parameters) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+    }
+
+    @Override
+    public void begin() {
+        // Changes are written as they are queued
+    }
+
+    @Override
+    public void close(final Vote vote) {
+        this.delete(vote);
+    }
+
+    @Override
+    public void delete(final Vote vote) {
+        final String id = vote.getId();
+
+        this.enqueue(() -> {
+            this.execute("DELETE FROM ballots WHERE vote_id = ?", id);
+            this.execute("DELETE FROM votes WHERE id = ?", id);
+        });
+    }
+
+    private void enqueue(final Update update) {
+        if (this.running) {
+            this.queue.add(update);
+        }
+    }
+
+    private void execute(final String sql, final Object... parameters) throws SQLException {
+        final PreparedStatement statement = this.prepare(sql);
+
+        DatabaseVoteStore.bind(statement, parameters);
+        statement.executeUpdate();
+    }
+
+    /**
+     * Counts the votes saved for a guild, using the index on guild.
+     * @param guild_id The snowflake of the guild
+     * @return The number of votes
+     * @throws SQLException if the database cannot be read
+     */
+    public int countGuildVotes(final long guild_id) throws SQLException {
+        synchronized (this) {
+            final PreparedStatement statement = this.prepare("SELECT COUNT(*) FROM votes WHERE guild_id = ?");
+            statement.setLong(1, guild_id);
+
+            try (ResultSet results = statement.executeQuery()) {
+                return results.next() ? results.getInt(1) : 0;
+            } finally {
+                this.connection.commit();
+            }
+        }
+    }
+
+    /**
+     * Reads the votes saved for a channel. The votes are read from the database and are not the ones being managed.
+     * @param channel_id The snowflake of the channel
+     * @return The votes, oldest first
+     * @throws SQLException if the database cannot be read
+     */
+    public Collection<Vote> getChannelVotes(final long channel_id) throws SQLException {
+        return this.query("channel_id", channel_id).values();
+    }
+
+    /**
+     * Reads the votes saved for a guild. The votes are read from the database and are not the ones being managed.
+     * @param guild_id The snowflake of the guild
+     * @return The votes, oldest first
+     * @throws SQLException if the database cannot be read
+     */
+    public Collection<Vote> getGuildVotes(final long guild_id) throws SQLException {
+        return this.query("guild_id", guild_id).values();
+    }
+
+    @Override
+    public long getLastSaveDuration() {
+        return this.duration;
+    }
+
+    @Override
+    public long getLastSaveSize() {
+        final File data = new File(this.file.getPath() + ".mv.db");
+        return data.exists() ? data.length() : -1;
+    }
+
+    /**
+     * Reads a vote saved in the database. The vote is read from the database and is not the one being managed.
+     * @param id The ID of the vote
+     * @return The vote or null if no vote with that ID is saved
+     * @throws SQLException if the database cannot be read
+     */
+    public Vote getVote(final String id) throws SQLException {
+        final String key = id.toLowerCase();
+        return this.query("id", key).get(key);
+    }
+
+    private boolean isBigint(final String table, final String column) throws SQLException {
+        try (ResultSet results = this.connection.getMetaData().getColumns(null, null, table, column)) {
+            return results.next() && results.getInt("DATA_TYPE") == Types.BIGINT;
+        }
+    }
+
+    @Override
+    public LinkedHashMap<String, Vote> load() {
+        try {
+            // The driver may be in the plugin's jar, which the driver manager does not search by itself
+            Class.forName("org.h2.Driver");
+
+            synchronized (this) {
+                this.connection = DriverManager.getConnection("jdbc:h2:file:" + this.file.getAbsolutePath());
+                this.connection.setAutoCommit(false);
+
+                try (Statement statement = this.connection.createStatement()) {
+                    statement.execute("CREATE TABLE IF NOT EXISTS votes (id VARCHAR(16) PRIMARY KEY, channel_id BIGINT, guild_id BIGINT, opener VARCHAR, opener_id VARCHAR(20), avatar VARCHAR, question VARCHAR, percent INT, commencement BIGINT NOT NULL, message_id BIGINT NOT NULL)");
+                    statement.execute("CREATE TABLE IF NOT EXISTS ballots (vote_id VARCHAR(16) NOT NULL, user_id BIGINT NOT NULL, response TINYINT NOT NULL, PRIMARY KEY (vote_id, user_id))");
+
+                    // Databases created before channels and guilds were kept as longs hold their snowflakes as text
+                    for (final String column : new String[] { "channel_id", "guild_id" }) {
+                        if (!this.isBigint("VOTES", column.toUpperCase())) {
+                            statement.execute("ALTER TABLE votes ALTER COLUMN " + column + " SET DATA TYPE BIGINT");
+                        }
+                    }
+
+                    statement.execute("CREATE INDEX IF NOT EXISTS votes_guild ON votes (guild_id)");
+                    statement.execute("CREATE INDEX IF NOT EXISTS votes_channel ON votes (channel_id)");
+                }
+
+                this.connection.commit();
+            }
+
+            final LinkedHashMap<String, Vote> loaded = this.query(null, null);
+            this.writer.start();
+            return loaded;
+        } catch (final ClassNotFoundException | SQLException e) {
+            Hilda.getLogger().log(Level.SEVERE, "Failed to open the vote database in " + this.partition.getFolder() + "; votes will not be saved", e);
+            this.running = false;
+            return new LinkedHashMap<>();
+        }
+    }
+
+    @Override
+    public void mark(final Vote vote) {
+        // Each change is written as it happens
+    }
+
+    @Override
+    public void message(final Vote vote) {
+        final String id = vote.getId();
+        final long message = vote.getMessageId();
+
+        this.enqueue(() -> this.execute("UPDATE votes SET message_id = ? WHERE id = ?", message, id));
+    }
+
+    private PreparedStatement prepare(final String sql) throws SQLException {
+        PreparedStatement statement = this.statements.get(sql);
+
+        if (statement == null) {
+            statement = this.connection.prepareStatement(sql);
+            this.statements.put(sql, statement);
+        }
+
+        return statement;
+    }
+
+    /**
+     * Reads votes and their ballots.
+     * @param column The column to select votes by or null to read every vote
+     * @param value The value the column must have
+     * @return The votes, keyed by lower case ID
+     */
+    private LinkedHashMap<String, Vote> query(final String column, final Object value) throws SQLException {
+        final String where = column == null ? "" : " WHERE " + column + " = ?";
+        final LinkedHashMap<String, Vote> votes = new LinkedHashMap<>();
+
+        synchronized (this) {
+            final PreparedStatement select = this.prepare(DatabaseVoteStore.SELECT_VOTES + where + " ORDER BY commencement");
+
+            if (column != null) {
+                select.setObject(1, value);
+            }
+
+            try (ResultSet results = select.executeQuery()) {
+                while (results.next()) {
+                    final Vote vote = new Vote();
+
+                    vote.setId(results.getString(1));
+                    vote.setChannelId(results.getLong(2));
+                    vote.setGuildId(results.getLong(3));
+                    vote.setOpener(results.getString(4));
+                    vote.setOpenerId(results.getString(5));
+                    vote.setAvatar(results.getString(6));
+                    vote.setQuestion(results.getString(7));
+
+                    final int percent = results.getInt(8);
+                    vote.setPercent(results.wasNull() ? null : percent);
+                    vote.setCommencement(results.getLong(9));
+                    vote.setMessageId(results.getLong(10));
+
+                    votes.put(vote.getId().toLowerCase(), vote);
+                }
+            }
+
+            final PreparedStatement ballots = this.prepare(column == null ? DatabaseVoteStore.SELECT_BALLOTS : DatabaseVoteStore.SELECT_BALLOTS + " WHERE vote_id IN (SELECT id FROM votes" + where + ")");
+
+            if (column != null) {
+                ballots.setObject(1, value);
+            }
+
+            try (ResultSet results = ballots.executeQuery()) {
+                while (results.next()) {
+                    final Vote vote = votes.get(results.getString(1).toLowerCase());
+
+                    if (vote != null) {
+                        vote.register(results.getLong(2), Vote.RESPONSES[results.getByte(3)]);
+                    }
+                }
+            }
+
+            // Reading starts a transaction too
+            this.connection.commit();
+        }
+
+        return votes;
+    }
+
+    @Override
+    public void register(final Vote vote, final long user, final VoteResponse response) {
+        final String id = vote.getId();
+
+        this.enqueue(() -> this.execute(DatabaseVoteStore.MERGE_BALLOT, id, user, (byte) response.ordinal()));
+    }
+
+    private void run() {
+        final ArrayList<Update> batch = new ArrayList<>();
+        int failures = 0;
+
+        while (this.running || !this.queue.isEmpty() || this.resync) {
+            try {
+                if (!this.resync) {
+                    final Update first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+
+                    if (first == null) {
+                        continue;
+                    }
+
+                    batch.add(first);
+                }
+
+                this.queue.drainTo(batch);
+
+                final long start = System.nanoTime();
+                boolean failed = false;
+
+                synchronized (this) {
+                    try {
+                        if (this.resync) {
+                            // Every change in the failed batches has already been made to the votes on the heap
+                            this.write(this.partition.getVotes());
+                        }
+
+                        for (final Update update : batch) {
+                            update.apply();
+                        }
+
+                        this.connection.commit();
+                    } catch (final SQLException e) {
+                        failed = true;
+                        failures++;
+                        Hilda.getLogger().log(Level.SEVERE, "Failed to write " + batch.size() + " changes to the vote database (attempt " + failures + ")", e);
+
+                        try {
+                            this.connection.rollback();
+                        } catch (final SQLException ex) {
+                            Hilda.getLogger().log(Level.SEVERE, "Failed to roll back the vote database", ex);
+                        }
+                    }
+                }
+
+                if (failed) {
+                    if (!this.running && this.resync) {
+                        Hilda.getLogger().severe("Gave up writing to the vote database while shutting down; changes since the last successful write are lost");
+                        return;
+                    }
+
+                    this.resync = true;
+                    Thread.sleep(Math.min(DatabaseVoteStore.RETRY << Math.min(failures - 1, 5), DatabaseVoteStore.MAXIMUM_RETRY));
+                    continue;
+                }
+
+                if (failures > 0) {
+                    Hilda.getLogger().info("Rewrote the vote database after " + failures + " failed attempts");
+                    failures = 0;
+                }
+
+                this.resync = false;
+                this.duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                this.plugin.getMetrics().getSave().since(start);
+                batch.clear();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replaces everything in the database with the partition's votes as they are when the write happens. The write is
+     * queued behind any changes already waiting, and this waits for it to finish.
+     */
+    @Override
+    public boolean save() {
+        if (!this.running) {
+            return false;
+        }
+
+        final CompletableFuture<Void> saved = new CompletableFuture<>();
+
+        this.enqueue(() -> {
+            try {
+                this.write(this.partition.getVotes());
+                saved.complete(null);
+            } catch (final SQLException e) {
+                saved.completeExceptionally(e);
+                throw e;
+            }
+        });
+
+        try {
+            saved.get(60, TimeUnit.SECONDS);
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (final ExecutionException | TimeoutException e) {
+            Hilda.getLogger().log(Level.SEVERE, "Failed to save votes to the database", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        this.running = false;
+
+        try {
+            this.writer.join(10000);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            try {
+                if (this.connection != null) {
+                    this.connection.close();
+                }
+            } catch (final SQLException e) {
+                Hilda.getLogger().log(Level.WARNING, "Failed to close the vote database", e);
+            }
+        }
+    }
+
+    @Override
+    public void start(final Vote vote) {
+        final Object[] row = DatabaseVoteStore.row(vote);
+        this.enqueue(() -> this.execute(DatabaseVoteStore.MERGE_VOTE, row));
+    }
+
+    private static Object[] row(final Vote vote) {
+        final Long channel_id = vote.getChannelIdLong() == 0 ? null : vote.getChannelIdLong();
+        final Long guild_id = vote.getGuildIdLong() == 0 ? null : vote.getGuildIdLong();
+
+        return new Object[] { vote.getId(), channel_id, guild_id, vote.getOpener(), vote.getOpenerId(), vote.getAvatar(), vote.getQuestion(), vote.getPercent(), vote.getCommencement(), vote.getMessageId() };
+    }
+
+    @Override
+    public void unregister(final Vote vote, final long user) {
+        final String id = vote.getId();
+
+        this.enqueue(() -> this.execute("DELETE FROM ballots WHERE vote_id = ? AND user_id = ?", id, user));
+    }
+
+    private void write(final Collection<Vote> votes) throws SQLException {
+        this.execute("DELETE FROM ballots");
+        this.execute("DELETE FROM votes");
+
+        final PreparedStatement insert = this.prepare(DatabaseVoteStore.MERGE_VOTE);
+        final PreparedStatement ballot = this.prepare(DatabaseVoteStore.MERGE_BALLOT);
+        final List<Vote> list = new ArrayList<>(votes);
+
+        // A failed write may have left rows batched
+        insert.clearBatch();
+        ballot.clearBatch();
+
+        for (final Vote vote : list) {
+            DatabaseVoteStore.bind(insert, DatabaseVoteStore.row(vote));
+            insert.addBatch();
+        }
+
+        insert.executeBatch();
+
+        for (final Vote vote : list) {
+            final BallotMap.Snapshot ballots = vote.getBallots();
+
+            for (int i = 0; i < ballots.size(); i++) {
+                ballot.setString(1, vote.getId());
+                ballot.setLong(2, ballots.users[i]);
+                ballot.setByte(3, ballots.responses[i]);
+                ballot.addBatch();
+            }
+        }
+
+        ballot.executeBatch();
+    }
+
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Saves a partition's votes as a {@link VoteSnapshot} written by a {@link VoteCheckpointer}, with every change in
+ * between recorded in a {@link VoteJournal}.
+ */
+public class FileVoteStore implements VoteStore {
+    private final VotePartition partition;
+    private final File file;
+    private final VoteCheckpointer checkpointer;
+    private VoteJournal journal;
+
+    public FileVoteStore(final VotePlugin plugin, final VotePartition partition) {
+        this.partition = partition;
+        this.file = new File(partition.getFolder(), "votes.hilda");
+        this.checkpointer = new VoteCheckpointer(plugin, this);
+    }
+
+    @Override
+    public void begin() {
+        this.checkpointer.start();
+    }
+
+    @Override
+    public void close(final Vote vote) {
+        if (this.journal != null) {
+            this.journal.close(vote);
+        }
+    }
+
+    @Override
+    public void delete(final Vote vote) {
+        if (this.journal != null) {
+            this.journal.delete(vote);
+        }
+    }
+
+    /**
+     * Gets the checkpointer that writes the snapshot.
+     * @return The checkpointer
+     */
+    public VoteCheckpointer getCheckpointer() {
+        return this.checkpointer;
+    }
+
+    /**
+     * Gets the snapshot the votes are saved in.
+     * @return The file
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Gets the journal that changes to the votes are recorded in.
+     * @return The journal or null if it has not been opened
+     */
+    public VoteJournal getJournal() {
+        return this.journal;
+    }
+
+    @Override
+    public long getLastSaveDuration() {
+        return this.checkpointer.getLastDuration();
+    }
+
+    @Override
+    public long getLastSaveSize() {
+        return this.checkpointer.getLastSize();
+    }
+
+    /**
+     * Gets the partition whose votes are saved.
+     * @return The partition
+     */
+    public VotePartition getPartition() {
+        return this.partition;
+    }
+
+    @Override
+    public LinkedHashMap<String, Vote> load() {
+        final LinkedHashMap<String, Vote> loaded = new LinkedHashMap<>();
+
+        if (this.file.exists()) {
+            try {
+                for (final Vote vote : VoteSnapshot.read(this.file)) {
+                    loaded.put(vote.getId().toLowerCase(), vote);
+                }
+            } catch (final Exception e) {
+                Hilda.getLogger().log(Level.SEVERE, "Failed to load votes from " + this.file, e);
+                loaded.clear();
+
+                // The next checkpoint would replace the snapshot with whatever the journal holds, so keep it aside
+                final File corrupt = new File(this.file.getParentFile(), this.file.getName() + ".corrupt-" + System.currentTimeMillis());
+
+                try {
+                    Files.move(this.file.toPath(), corrupt.toPath());
+                    Hilda.getLogger().severe("Moved the unreadable snapshot to " + corrupt + "; only the votes in the journal have been restored");
+                } catch (final IOException ex) {
+                    throw new IllegalStateException("Refusing to load votes in " + this.partition.getFolder() + " as the unreadable snapshot " + this.file + " could not be moved aside", ex);
+                }
+            }
+        } else {
+            Hilda.getLogger().info("No votes saved to " + this.file);
+        }
+
+        this.journal = new VoteJournal(this.partition.getFolder());
+
+        final int replayed = this.journal.replay(loaded);
+
+        if (replayed > 0) {
+            Hilda.getLogger().info("Replayed " + replayed + " changes from the vote journal in " + this.partition.getFolder());
+        }
+
+        try {
+            this.journal.open();
+        } catch (final IOException e) {
+            Hilda.getLogger().log(Level.SEVERE, "Failed to open the vote journal in " + this.partition.getFolder() + "; votes will only be saved at checkpoints", e);
+            this.journal = null;
+        }
+
+        return loaded;
+    }
+
+    @Override
+    public void mark(final Vote vote) {
+        this.checkpointer.mark(vote);
+    }
+
+    @Override
+    public void message(final Vote vote) {
+        if (this.journal != null) {
+            this.journal.message(vote);
+        }
+    }
+
+    @Override
+    public void register(final Vote vote, final long user, final VoteResponse response) {
+        if (this.journal != null) {
+            this.journal.register(vote, user, response);
+        }
+    }
+
+    @Override
+    public boolean save() {
+        return this.checkpointer.checkpoint(true);
+    }
+
+    @Override
+    public void shutdown() {
+        this.checkpointer.shutdown();
+
+        if (this.journal != null) {
+            this.journal.shutdown();
+        }
+    }
+
+    @Override
+    public void start(final Vote vote) {
+        if (this.journal != null) {
+            this.journal.start(vote);
+        }
+    }
+
+    @Override
+    public void unregister(final Vote vote, final long user) {
+        if (this.journal != null) {
+            this.journal.unregister(vote, user);
+        }
+    }
+
+}
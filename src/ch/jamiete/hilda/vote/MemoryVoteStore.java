@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Keeps a partition's votes in memory only, for tests and benchmarks that should not touch the disk.
+ * <p>
+ * Nothing is recorded as votes change. Saving keeps a snapshot of the partition in memory, and the partition loads it
+ * again if the plugin is enabled once more in the same process; the snapshot is lost when the process exits.
+ */
+public class MemoryVoteStore implements VoteStore {
+    private static final Map<Integer, byte[]> SAVED = new ConcurrentHashMap<>();
+
+    /**
+     * Forgets every snapshot saved in memory.
+     */
+    public static void clear() {
+        MemoryVoteStore.SAVED.clear();
+    }
+
+    private final VotePartition partition;
+    private volatile long duration = -1;
+    private volatile long size = -1;
+
+    public MemoryVoteStore(final VotePartition partition) {
+        this.partition = partition;
+    }
+
+    @Override
+    public void begin() {
+        // Nothing is saved in the background
+    }
+
+    @Override
+    public void close(final Vote vote) {
+        // Nothing is recorded
+    }
+
+    @Override
+    public void delete(final Vote vote) {
+        // Nothing is recorded
+    }
+
+    @Override
+    public long getLastSaveDuration() {
+        return this.duration;
+    }
+
+    @Override
+    public long getLastSaveSize() {
+        return this.size;
+    }
+
+    @Override
+    public LinkedHashMap<String, Vote> load() {
+        final LinkedHashMap<String, Vote> loaded = new LinkedHashMap<>();
+        final byte[] saved = MemoryVoteStore.SAVED.get(this.partition.getShard());
+
+        if (saved != null) {
+            try {
+                for (final Vote vote : VoteSnapshot.read(saved)) {
+                    loaded.put(vote.getId().toLowerCase(), vote);
+                }
+            } catch (final IOException e) {
+                Hilda.getLogger().log(Level.SEVERE, "Failed to load votes from memory", e);
+            }
+        }
+
+        return loaded;
+    }
+
+    @Override
+    public void mark(final Vote vote) {
+        // Nothing is recorded
+    }
+
+    @Override
+    public void message(final Vote vote) {
+        // Nothing is recorded
+    }
+
+    @Override
+    public void register(final Vote vote, final long user, final VoteResponse response) {
+        // Nothing is recorded
+    }
+
+    @Override
+    public synchronized boolean save() {
+        final long start = System.nanoTime();
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        try {
+            this.size = VoteSnapshot.write(this.partition.getVotes(), stream);
+        } catch (final IOException e) {
+            Hilda.getLogger().log(Level.SEVERE, "Failed to save votes to memory", e);
+            return false;
+        }
+
+        MemoryVoteStore.SAVED.put(this.partition.getShard(), stream.toByteArray());
+        this.duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        this.save();
+    }
+
+    @Override
+    public void start(final Vote vote) {
+        // Nothing is recorded
+    }
+
+    @Override
+    public void unregister(final Vote vote, final long user) {
+        // Nothing is recorded
+    }
+
+}
@@ -15,26 +15,97 @@
  *******************************************************************************/
 package ch.jamiete.hilda.vote;
 
-import java.awt.Color;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ScheduledFuture;
-import net.dv8tion.jda.api.EmbedBuilder;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.StampedLock;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.TextChannel;
-import org.apache.commons.lang3.StringUtils;
 import ch.jamiete.hilda.Hilda;
 
 public class Vote implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Whether to check the running tallies against a full recount of the ballots after each change. This is slow and
+     * only intended for debugging; enable it with {@code -Dhilda.vote.verify=true}.
+     */
+    static final boolean VERIFY_TALLIES = Boolean.getBoolean("hilda.vote.verify");
+
+    static final VoteResponse[] RESPONSES = VoteResponse.values();
+
+    /**
+     * Votes are saved with {@link VoteSnapshot}; Java serialisation is only kept to read snapshots written by older
+     * versions. The serialised form predates {@link BallotMap}, so the responses are written as a {@link HashMap}.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("channel_id", String.class),
+            new ObjectStreamField("guild_id", String.class),
+            new ObjectStreamField("opener", String.class),
+            new ObjectStreamField("opener_id", String.class),
+            new ObjectStreamField("avatar", String.class),
+            new ObjectStreamField("id", String.class),
+            new ObjectStreamField("question", String.class),
+            new ObjectStreamField("percent", Integer.class),
+            new ObjectStreamField("commencement", Long.class),
+            new ObjectStreamField("responses", HashMap.class)
+    };
+
     transient Hilda hilda;
     transient VotePlugin plugin;
-    private transient ScheduledFuture<?> future;
+    private transient VoteTimer.Timeout timeout;
+
+    /**
+     * Registrations share this lock so that they never block each other. {@link #finish()} takes it exclusively to
+     * close the vote, and {@link #release()} to hand it to another process, after which the ballots can no longer
+     * change.
+     */
+    private transient StampedLock lock = new StampedLock();
+    private transient volatile boolean closed = false;
+    private transient volatile boolean released = false;
+    private transient AtomicIntegerArray counts = new AtomicIntegerArray(VoteResponse.values().length);
+
+    /**
+     * The non-bot members who can see the channel, used as a set, and how many of them have not voted. Both are only
+     * meaningful once {@link #countPending()} has run, which {@link #counted} records. A member only counts as pending
+     * while they are eligible, and the count only changes with the stripe of {@link #ballots} holding that member
+     * locked, so ballots and membership changes for the same member are applied one at a time.
+     */
+    private transient BallotMap eligible = new BallotMap(null);
+    private transient AtomicInteger pending = new AtomicInteger();
+    private transient volatile boolean counted = false;
+    private transient AtomicBoolean recounting = new AtomicBoolean();
+
+    /**
+     * Whether a thread has started bringing the vote up to date with its guild, and a latch released once it has
+     * finished. See {@link VotePlugin#validate(Vote)}.
+     */
+    private transient AtomicBoolean validating = new AtomicBoolean();
+    private transient CountDownLatch validated = new CountDownLatch(1);
+
+    /**
+     * The channel the vote is in, once it has been looked up. It is held weakly so that a channel JDA has dropped, or
+     * replaced after reconnecting, is looked up again rather than kept alive. See {@link #getChannel()}.
+     */
+    private transient volatile WeakReference<TextChannel> channel;
 
-    private String channel_id;
+    private long channel_id;
+    private long guild_id;
     private String opener;
     private String opener_id;
     private String avatar;
@@ -45,7 +116,9 @@ public class Vote implements Serializable {
 
     private Long commencement = Long.MIN_VALUE;
 
-    private final HashMap<String, VoteResponse> responses = new HashMap<>();
+    private long message_id = 0;
+
+    private transient BallotMap ballots = new BallotMap(this::changed);
 
     /**
      * Instantiates an empty Vote. <b>Only use this where votes are being loaded from disk.</b>
@@ -60,160 +133,226 @@ public class Vote implements Serializable {
     }
 
     /**
-     * Ends the vote if all members of the channel have voted on it.
+     * Keeps the tallies and journal up to date as ballots change. Called by {@link BallotMap} with the user's stripe
+     * locked.
      */
-    public void check() {
-        for (final Member member : this.hilda.getBot().getTextChannelById(this.channel_id).getMembers()) {
-            if (!this.hasVoted(member) && !member.getUser().isBot()) {
-                return;
+    private void changed(final long user, final int previous, final int response) {
+        if (previous == response) {
+            return;
+        }
+
+        if (previous >= 0) {
+            this.counts.decrementAndGet(previous);
+        }
+
+        if (response >= 0) {
+            this.counts.incrementAndGet(response);
+        }
+
+        // Only a first ballot or a withdrawn one changes whether an eligible member is yet to vote
+        if (this.counted && (previous < 0) != (response < 0) && this.eligible.containsKey(user)) {
+            if (response >= 0) {
+                this.pending.decrementAndGet();
+            } else {
+                this.pending.incrementAndGet();
             }
+
+            this.index(user, response < 0);
         }
 
-        this.finish();
+        if (this.plugin == null) {
+            return;
+        }
+
+        // Every change is checked for a store before it is made, and the store cannot go while a change holds the lock
+        final VoteStore store = this.plugin.getStore(this);
+
+        if (store == null) {
+            Hilda.getLogger().severe("Vote " + this.id + " changed after its shard was released; the change was not saved");
+        } else if (response >= 0) {
+            store.register(this, user, Vote.RESPONSES[response]);
+        } else {
+            store.unregister(this, user);
+        }
+
+        this.plugin.changed(this);
     }
 
     /**
-     * Ends the vote.
+     * Records in the plugin's index whether an eligible member is yet to respond to the vote. Must hold the lock, and
+     * the member's stripe of {@link #ballots} unless the lock is held exclusively.
+     * @param user The snowflake of the member
+     * @param waiting Whether the member is yet to respond
      */
-    public void finish() {
-        final TextChannel channel = this.hilda.getBot().getTextChannelById(this.channel_id);
-        channel.sendTyping().queue();
-
-        final EmbedBuilder eb = new EmbedBuilder();
-
-        eb.setTitle(StringUtils.abbreviate(this.question, 256), null);
+    private void index(final long user, final boolean waiting) {
+        if (this.plugin == null || this.closed || this.released) {
+            return;
+        }
 
-        if (this.percent == null) {
-            eb.setFooter("Vote " + this.id + " opened by " + this.opener, this.avatar);
+        if (waiting) {
+            this.plugin.getPendingIndex().add(this.guild_id, user, this.id);
         } else {
-            eb.setFooter("Vote " + this.id + " opened by " + this.opener + " with supermajority requirement of " + this.percent + " per cent", this.avatar);
+            this.plugin.getPendingIndex().remove(this.guild_id, user, this.id);
         }
+    }
 
-        final ArrayList<Member> yea = new ArrayList<>();
-        final ArrayList<Member> nay = new ArrayList<>();
-        final ArrayList<Member> abstain = new ArrayList<>();
-
-        for (final Entry<String, VoteResponse> entry : this.responses.entrySet()) {
-            final Member member = channel.getGuild().getMemberById(entry.getKey());
+    /**
+     * Removes the vote from the plugin's index of pending votes. Must hold the lock exclusively.
+     */
+    private void unindex() {
+        if (this.plugin != null) {
+            this.plugin.getPendingIndex().remove(this.guild_id, this.id);
+        }
+    }
 
-            if (member == null) {
-                break;
-            }
+    /**
+     * Checks that a change to the ballots can be saved. Must hold the lock.
+     * @throws IllegalStateException if the vote has been handed to another process or its store is gone
+     */
+    private void checkStore() {
+        if (this.released || this.plugin != null && this.plugin.getStore(this) == null) {
+            throw new IllegalStateException("Vote " + this.id + " is not managed by this process");
+        }
+    }
 
-            switch (entry.getValue()) {
-                case YEA:
-                    yea.add(member);
-                    break;
+    /**
+     * Ends the vote if all members of the channel have voted on it.
+     */
+    public void check() {
+        final long start = System.nanoTime();
 
-                case NAY:
-                    nay.add(member);
-                    break;
+        if (this.counted && this.pending.get() <= 0) {
+            this.finish();
+        }
 
-                case ABSTAIN:
-                    abstain.add(member);
-                    break;
-            }
+        if (this.plugin != null) {
+            this.plugin.getMetrics().getCheck().since(start);
         }
+    }
 
-        final StringBuilder yeas = new StringBuilder();
-        if (yea.size() > 0) {
-            for (final Member member : yea) {
-                yeas.append(member.getEffectiveName()).append(", ");
-            }
+    /**
+     * Counts the members of the channel who have not yet voted by scanning the channel. This blocks registrations
+     * while it runs, so it should only be used when the vote is opened or loaded and when permissions change.
+     */
+    public void countPending() {
+        final TextChannel channel = this.getChannel();
 
-            yeas.setLength(yeas.length() - 2);
-        } else {
-            yeas.append("None");
+        if (channel == null) {
+            return;
         }
-        eb.addField("YEA (" + yea.size() + ")", yeas.toString(), true);
 
-        final StringBuilder nays = new StringBuilder();
-        if (nay.size() > 0) {
-            for (final Member member : nay) {
-                nays.append(member.getEffectiveName()).append(", ");
+        final long stamp = this.lock.writeLock();
+
+        try {
+            int count = 0;
+
+            this.eligible.clear();
+            this.unindex();
+
+            for (final Member member : channel.getMembers()) {
+                if (member.getUser().isBot()) {
+                    continue;
+                }
+
+                this.eligible.put(member.getUser().getIdLong(), 0);
+
+                if (!this.ballots.containsKey(member.getUser().getIdLong())) {
+                    this.index(member.getUser().getIdLong(), true);
+                    count++;
+                }
             }
 
-            nays.setLength(nays.length() - 2);
-        } else {
-            nays.append("None");
+            this.pending.set(count);
+            this.counted = true;
+        } finally {
+            this.lock.unlockWrite(stamp);
         }
-        eb.addField("NAY (" + nay.size() + ")", nays.toString(), true);
+    }
 
-        for (final Member member : channel.getMembers()) {
-            if (this.hasVoted(member) || member.getUser().isBot()) {
-                continue;
+    /**
+     * Ends the vote.
+     */
+    public void finish() {
+        final long start = System.nanoTime();
+        final BallotMap.Snapshot ballots;
+        final int yeacount;
+        final int naycount;
+        final long stamp = this.lock.writeLock();
+
+        try {
+            if (this.closed || this.released) {
+                return;
             }
 
-            abstain.add(member);
-        }
+            this.closed = true;
+            this.unindex();
 
-        if (abstain.size() <= 15) {
-            final StringBuilder abstentions = new StringBuilder();
-            if (abstain.size() > 0) {
-                for (final Member member : abstain) {
-                    abstentions.append(member.getEffectiveName()).append(", ");
-                }
+            final VoteStore store = this.plugin.getStore(this);
 
-                abstentions.setLength(abstentions.length() - 2);
-            } else {
-                abstentions.append("None");
+            if (store != null) {
+                store.close(this);
             }
-            eb.addField("ABSTENTIONS (" + abstain.size() + ")", abstentions.toString(), true);
-        }
-
-        // Counting logic
-        if (this.percent == null) {
-            if (yea.size() > nay.size()) {
-                eb.addField("RESULT", "The yeas have it.", false);
-                eb.setColor(Color.decode("#32b67a"));
-            } else if (nay.size() > yea.size()) {
-                eb.addField("RESULT", "The nays have it.", false);
-                eb.setColor(Color.decode("#e54b4b"));
-            } else if (yea.size() == 0 && nay.size() == 0) {
-                eb.addField("RESULT", "The vote failed as everyone abstained.", false);
-                eb.setColor(Color.decode("#c0c2ce"));
-            } else {
-                eb.addField("RESULT", "The vote tied.", false);
-                eb.setColor(Color.decode("#c0c2ce"));
-            }
-        } else {
-            final int sum = yea.size() + nay.size();
 
-            if (sum == 0) {
-                eb.addField("RESULT", "The vote failed as everyone abstained.", false);
-                eb.setColor(Color.decode("#c0c2ce"));
-            } else {
-                final double yeapc = (double) yea.size() / (double) sum * 100;
-
-                Hilda.getLogger().info("yea " + yea.size() + " nay " + nay.size() + " sum " + sum + " pc " + yeapc);
-
-                if (yeapc >= this.percent) {
-                    eb.addField("RESULT", "The yeas have it.", false);
-                    eb.setColor(Color.decode("#32b67a"));
-                } else if (yeapc == 50.00) {
-                    eb.addField("RESULT", "The vote tied.", false);
-                    eb.setColor(Color.decode("#c0c2ce"));
-                } else {
-                    eb.addField("RESULT", "The yeas (" + Math.round(yeapc) + "%) did not reach the required supermajority of " + this.percent + "%.", false);
-                    eb.setColor(Color.decode("#e54b4b"));
-                }
+            if (Vote.VERIFY_TALLIES) {
+                this.recount();
             }
+
+            ballots = this.ballots.snapshot();
+            yeacount = this.counts.get(VoteResponse.YEA.ordinal());
+            naycount = this.counts.get(VoteResponse.NAY.ordinal());
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+
+        final VotePartition partition = this.plugin.getPartition(this);
+
+        if (partition != null) {
+            partition.getArchive().add(this, ballots, System.currentTimeMillis());
         }
 
-        channel.sendMessage(eb.build()).queue();
+        final TextChannel channel = this.getChannel();
+
+        if (channel != null) {
+            channel.sendMessage(this.plugin.getRenderer().render(this, channel, ballots, yeacount, naycount)).queue();
+        }
 
         this.plugin.remove(this);
 
-        if (this.getFuture() != null) {
-            this.getFuture().cancel(false);
+        if (this.timeout != null) {
+            this.timeout.cancel();
         }
+
+        this.plugin.getMetrics().getFinish().since(start);
     }
 
     public String getAvatar() {
         return this.avatar;
     }
 
+    /**
+     * Gets the channel the vote is in. It is looked up the first time and then reused for as long as JDA holds it.
+     * @return The channel, or null if it has been deleted or cannot be seen
+     */
+    public TextChannel getChannel() {
+        final WeakReference<TextChannel> reference = this.channel;
+        TextChannel channel = reference == null ? null : reference.get();
+
+        if (channel == null && this.hilda != null && this.channel_id != 0) {
+            channel = this.hilda.getBot().getTextChannelById(this.channel_id);
+
+            if (channel != null) {
+                this.channel = new WeakReference<>(channel);
+            }
+        }
+
+        return channel;
+    }
+
     public String getChannelId() {
+        return VoteSnapshot.getSnowflake(this.channel_id);
+    }
+
+    public long getChannelIdLong() {
         return this.channel_id;
     }
 
@@ -221,14 +360,26 @@ public class Vote implements Serializable {
         return this.commencement;
     }
 
-    public ScheduledFuture<?> getFuture() {
-        return this.future;
+    public String getGuildId() {
+        return VoteSnapshot.getSnowflake(this.guild_id);
+    }
+
+    public long getGuildIdLong() {
+        return this.guild_id;
     }
 
     public String getId() {
         return this.id;
     }
 
+    /**
+     * Gets the message posted when the vote opened, which shows its tally and takes reactions.
+     * @return The snowflake of the message or 0 if it has not been posted
+     */
+    public long getMessageId() {
+        return this.message_id;
+    }
+
     public String getOpener() {
         return this.opener;
     }
@@ -245,28 +396,364 @@ public class Vote implements Serializable {
         return this.question;
     }
 
-    public HashMap<String, VoteResponse> getResponses() {
-        return this.responses;
+    /**
+     * Gets the number of ballots cast for a response.
+     * @param response The response to count
+     * @return The number of ballots
+     */
+    public int getCount(final VoteResponse response) {
+        return this.counts.get(response.ordinal());
+    }
+
+    /**
+     * Gets the total number of ballots cast.
+     * @return The number of ballots
+     */
+    public int getResponseCount() {
+        int total = 0;
+
+        for (int i = 0; i < this.counts.length(); i++) {
+            total += this.counts.get(i);
+        }
+
+        return total;
+    }
+
+    /**
+     * Gets the number of members of the channel who have not yet voted.
+     * @return The number of members or -1 if they have not been counted yet
+     */
+    public int getPending() {
+        return this.counted ? this.pending.get() : -1;
+    }
+
+    /**
+     * Gets a copy of the ballots cast.
+     * @return The ballots
+     */
+    public BallotMap.Snapshot getBallots() {
+        return this.ballots.snapshot();
+    }
+
+    /**
+     * Gets the response a user gave.
+     * @param user The snowflake of the user
+     * @return The user's response or null if they have not voted
+     */
+    public VoteResponse getResponse(final long user) {
+        final int response = this.ballots.get(user);
+        return response < 0 ? null : Vote.RESPONSES[response];
+    }
+
+    /**
+     * Gets a live, unmodifiable view of the ballots cast, keyed by user ID. The entries are created as they are
+     * iterated, so prefer {@link #getBallots()} or {@link #getResponse(long)} where possible.
+     * @return A map of user IDs to their response
+     */
+    public Map<String, VoteResponse> getResponses() {
+        return new ResponseView();
+    }
+
+    public VoteTimer.Timeout getTimeout() {
+        return this.timeout;
     }
 
     public boolean hasVoted(final Member member) {
-        return this.responses.containsKey(member.getUser().getId());
+        return this.ballots.containsKey(member.getUser().getIdLong());
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    public boolean isValidated() {
+        return this.validated.getCount() == 0;
+    }
+
+    /**
+     * Updates the count of members yet to vote after a member has joined or left the channel. A member who joins twice,
+     * or leaves without having been eligible, is only counted once.
+     * @param member The member
+     * @param joined Whether the member joined, rather than left, the channel
+     */
+    public void onMemberChange(final Member member, final boolean joined) {
+        if (member.getUser().isBot()) {
+            return;
+        }
+
+        final long user = member.getUser().getIdLong();
+        final long stamp = this.lock.readLock();
+
+        try {
+            if (!this.counted) {
+                // The first count will find them
+                return;
+            }
+
+            this.ballots.locked(user, () -> {
+                final boolean changed = joined ? this.eligible.put(user, 0) < 0 : this.eligible.remove(user) >= 0;
+
+                if (changed && !this.ballots.containsKey(user)) {
+                    if (joined) {
+                        this.pending.incrementAndGet();
+                    } else {
+                        this.pending.decrementAndGet();
+                    }
+
+                    this.index(user, joined);
+                }
+            });
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Records a user's response, replacing any response they gave before. Safe to call from any thread.
+     * @param user The snowflake of the user
+     * @param response The response to record
+     * @return The user's previous response or null if they had not voted
+     * @throws IllegalStateException if the vote has already finished or is not managed by this process
+     */
+    public VoteResponse register(final long user, final VoteResponse response) {
+        final long stamp = this.lock.readLock();
+
+        try {
+            if (this.closed) {
+                throw new IllegalStateException("Vote " + this.id + " has finished");
+            }
+
+            this.checkStore();
+
+            final int previous = this.ballots.put(user, response.ordinal());
+
+            if (this.plugin != null) {
+                this.plugin.getMetrics().getRegistrationMeter().mark();
+            }
+
+            return previous < 0 ? null : Vote.RESPONSES[previous];
+        } finally {
+            this.lock.unlockRead(stamp);
+
+            if (Vote.VERIFY_TALLIES) {
+                this.verify();
+            }
+        }
+    }
+
+    /**
+     * Withdraws a user's response if it is the one given, counting them as yet to vote again if they can see the channel.
+     * @param user The snowflake of the user
+     * @param response The response to withdraw
+     * @return Whether the response was withdrawn
+     * @throws IllegalStateException if the vote is not managed by this process
+     */
+    public boolean retract(final long user, final VoteResponse response) {
+        final long stamp = this.lock.readLock();
+
+        try {
+            if (this.closed) {
+                return false;
+            }
+
+            this.checkStore();
+            return this.ballots.remove(user, response.ordinal());
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Removes a user's response. The user counts as yet to vote again only if they can still see the channel.
+     * @param user The snowflake of the user
+     * @return The response removed or null if they had not voted
+     * @throws IllegalStateException if the vote is not managed by this process
+     */
+    public VoteResponse unregister(final long user) {
+        final long stamp = this.lock.readLock();
+
+        try {
+            this.checkStore();
+
+            final int previous = this.ballots.remove(user);
+            return previous < 0 ? null : Vote.RESPONSES[previous];
+        } finally {
+            this.lock.unlockRead(stamp);
+
+            if (Vote.VERIFY_TALLIES) {
+                this.verify();
+            }
+        }
+    }
+
+    /**
+     * Recounts the ballots and the eligible members yet to vote, correcting the running counts if they have drifted.
+     * Must hold the write lock.
+     * @return Whether the counts were correct
+     */
+    private boolean recount() {
+        final int[] actual = new int[this.counts.length()];
+
+        this.ballots.forEach((user, response) -> actual[response]++);
+
+        boolean correct = true;
+
+        for (final VoteResponse response : VoteResponse.values()) {
+            final int expected = this.counts.get(response.ordinal());
+
+            if (expected != actual[response.ordinal()]) {
+                Hilda.getLogger().warning("Vote " + this.id + " counted " + expected + " " + response + " but has " + actual[response.ordinal()] + " ballots");
+                this.counts.set(response.ordinal(), actual[response.ordinal()]);
+                correct = false;
+            }
+        }
+
+        if (this.counted) {
+            final long[] members = new long[this.eligible.size()];
+            final int[] index = new int[1];
+            this.eligible.forEach((user, ignored) -> members[index[0]++] = user);
+
+            int expected = 0;
+
+            for (final long user : members) {
+                if (!this.ballots.containsKey(user)) {
+                    expected++;
+                }
+            }
+
+            if (this.pending.get() != expected) {
+                Hilda.getLogger().warning("Vote " + this.id + " counted " + this.pending.get() + " members yet to vote but has " + expected);
+                this.pending.set(expected);
+                correct = false;
+
+                this.unindex();
+
+                for (final long user : members) {
+                    if (!this.ballots.containsKey(user)) {
+                        this.index(user, true);
+                    }
+                }
+            }
+        }
+
+        return correct;
+    }
+
+    /**
+     * Stops the vote changing once it has been deleted or so that it can be handed to whichever process owns its shard
+     * next. Waits for any registration in progress, which is saved before the partition is closed.
+     * @return Whether the vote was still open
+     */
+    boolean release() {
+        final long stamp = this.lock.writeLock();
+
+        try {
+            this.released = true;
+            this.unindex();
+            return !this.closed;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    public void setTimeout(final VoteTimer.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Checks the running tallies and the count of members yet to vote against a full recount, correcting them if they
+     * have drifted.
+     * @return Whether the tallies were correct
+     */
+    public boolean verify() {
+        final long stamp = this.lock.writeLock();
+
+        try {
+            return this.recount();
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Waits for the thread validating the vote to finish.
+     */
+    void awaitValidation() {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                this.validated.await();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Claims the validation of the vote, returning whether no other thread had. A caller that claims it must call
+     * {@link #endValidation()} once it is done.
+     * @return Whether the caller should validate the vote
+     */
+    boolean beginValidation() {
+        return this.validating.compareAndSet(false, true);
+    }
+
+    /**
+     * Marks the vote as validated, releasing any threads waiting for it.
+     */
+    void endValidation() {
+        this.validated.countDown();
+    }
+
+    /**
+     * Marks that the eligible members should be counted again, returning whether a recount was already pending.
+     * @return Whether the caller should schedule the recount
+     */
+    boolean requestRecount() {
+        return this.recounting.compareAndSet(false, true);
+    }
+
+    /**
+     * Runs a recount requested through {@link #requestRecount()} and ends the vote if everyone has now voted.
+     */
+    void runRecount() {
+        this.recounting.set(false);
+
+        if (!this.closed) {
+            this.countPending();
+            this.check();
+        }
     }
 
     public void setAvatar(final String avatar) {
         this.avatar = avatar;
     }
 
-    public void setChannelId(final String channel_id) {
+    /**
+     * Sets the channel the vote is in, or forgets it so that it is looked up again when next needed.
+     * @param channel The channel, or null to forget it
+     */
+    public void setChannel(final TextChannel channel) {
+        this.channel = channel == null ? null : new WeakReference<>(channel);
+    }
+
+    public void setChannelId(final long channel_id) {
         this.channel_id = channel_id;
+        this.channel = null;
     }
 
     public void setCommencement(final long commencement) {
         this.commencement = commencement;
     }
 
-    public void setFuture(final ScheduledFuture<?> future) {
-        this.future = future;
+    public void setGuildId(final long guild_id) {
+        this.guild_id = guild_id;
     }
 
     public void setHilda(final Hilda hilda) {
@@ -279,6 +766,10 @@ public class Vote implements Serializable {
         this.id = id;
     }
 
+    public void setMessageId(final long message_id) {
+        this.message_id = message_id;
+    }
+
     public void setOpener(final String opener) {
         this.opener = opener;
     }
@@ -300,4 +791,126 @@ public class Vote implements Serializable {
     public void setQuestion(final String question) {
         this.question = question;
     }
-}
\ No newline at end of file
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final ObjectInputStream.GetField fields = in.readFields();
+
+        this.channel_id = VoteSnapshot.parseSnowflake((String) fields.get("channel_id", null));
+        this.guild_id = VoteSnapshot.parseSnowflake((String) fields.get("guild_id", null));
+        this.opener = (String) fields.get("opener", null);
+        this.opener_id = (String) fields.get("opener_id", null);
+        this.avatar = (String) fields.get("avatar", null);
+        this.id = (String) fields.get("id", null);
+        this.question = (String) fields.get("question", null);
+        this.percent = (Integer) fields.get("percent", null);
+        final Long commencement = (Long) fields.get("commencement", (Object) null);
+        this.commencement = commencement == null ? Long.MIN_VALUE : commencement;
+
+        this.lock = new StampedLock();
+        this.counts = new AtomicIntegerArray(VoteResponse.values().length);
+        this.eligible = new BallotMap(null);
+        this.pending = new AtomicInteger();
+        this.recounting = new AtomicBoolean();
+        this.validating = new AtomicBoolean();
+        this.validated = new CountDownLatch(1);
+        this.ballots = new BallotMap(this::changed);
+
+        @SuppressWarnings("unchecked")
+        final HashMap<String, VoteResponse> saved = (HashMap<String, VoteResponse>) fields.get("responses", null);
+
+        if (saved != null) {
+            for (final Entry<String, VoteResponse> entry : saved.entrySet()) {
+                try {
+                    this.register(Long.parseUnsignedLong(entry.getKey()), entry.getValue());
+                } catch (final NumberFormatException e) {
+                    Hilda.getLogger().warning("Dropped ballot from malformed user ID " + entry.getKey() + " on vote " + this.id);
+                }
+            }
+        }
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        final ObjectOutputStream.PutField fields = out.putFields();
+
+        fields.put("channel_id", this.getChannelId());
+        fields.put("guild_id", this.getGuildId());
+        fields.put("opener", this.opener);
+        fields.put("opener_id", this.opener_id);
+        fields.put("avatar", this.avatar);
+        fields.put("id", this.id);
+        fields.put("question", this.question);
+        fields.put("percent", this.percent);
+        fields.put("commencement", this.commencement);
+        fields.put("responses", new HashMap<>(this.getResponses()));
+
+        out.writeFields();
+    }
+
+    /**
+     * A read-only view of the ballots keyed by user ID, for callers that predate {@link BallotMap}.
+     */
+    private final class ResponseView extends AbstractMap<String, VoteResponse> {
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return this.get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, VoteResponse>> entrySet() {
+            return new AbstractSet<Entry<String, VoteResponse>>() {
+
+                @Override
+                public Iterator<Entry<String, VoteResponse>> iterator() {
+                    final BallotMap.Snapshot ballots = Vote.this.ballots.snapshot();
+
+                    return new Iterator<Entry<String, VoteResponse>>() {
+                        private int index = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return this.index < ballots.size();
+                        }
+
+                        @Override
+                        public Entry<String, VoteResponse> next() {
+                            if (!this.hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+
+                            final int i = this.index++;
+                            return new SimpleImmutableEntry<>(Long.toUnsignedString(ballots.users[i]), Vote.RESPONSES[ballots.responses[i]]);
+                        }
+
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return Vote.this.ballots.size();
+                }
+
+            };
+        }
+
+        @Override
+        public VoteResponse get(final Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+
+            try {
+                return Vote.this.getResponse(Long.parseUnsignedLong((String) key));
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public int size() {
+            return Vote.this.ballots.size();
+        }
+
+    }
+
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.TextChannel;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Combines the confirmations sent for ballots into one message per channel per window.
+ * <p>
+ * The first confirmation in a channel opens a window and every confirmation in the same channel before it closes is
+ * added to it. When the window closes a single message listing them all is sent, and if enabled the commands that
+ * caused them are deleted in bulk. A burst of ballots therefore costs one message per window rather than one per
+ * ballot.
+ * <p>
+ * The window can be set in milliseconds with {@code -Dhilda.vote.acknowledge.window}, where zero sends each
+ * confirmation straight away, and bulk deletion turned on with {@code -Dhilda.vote.acknowledge.delete=true}.
+ */
+public class VoteAcknowledger {
+    public static final long WINDOW = Long.getLong("hilda.vote.acknowledge.window", 3000); // 3 seconds
+    public static final boolean DELETE = Boolean.getBoolean("hilda.vote.acknowledge.delete");
+
+    private static final int MAXIMUM_LENGTH = 2000;
+    private static final int BULK_DELETE = 100;
+
+    private static final class Window {
+        private final TextChannel channel;
+        private final List<String> lines = new ArrayList<>();
+        private final List<Message> invocations = new ArrayList<>();
+
+        private Window(final TextChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final VotePlugin plugin;
+    private final ConcurrentHashMap<Long, Window> windows = new ConcurrentHashMap<>();
+
+    public VoteAcknowledger(final VotePlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Queues a confirmation to be sent in the channel the command was sent in.
+     * @param invocation The command that cast the ballot
+     * @param line The confirmation
+     */
+    public void acknowledge(final Message invocation, final String line) {
+        final TextChannel channel = invocation.getTextChannel();
+
+        if (VoteAcknowledger.WINDOW <= 0) {
+            channel.sendMessage(line).queue();
+            return;
+        }
+
+        final boolean[] opened = new boolean[1];
+
+        this.windows.compute(channel.getIdLong(), (id, window) -> {
+            final Window result = window == null ? new Window(channel) : window;
+
+            result.lines.add(line);
+            result.invocations.add(invocation);
+            opened[0] = window == null;
+            return result;
+        });
+
+        if (opened[0]) {
+            this.plugin.getHilda().getExecutor().schedule(() -> this.flush(channel.getIdLong()), VoteAcknowledger.WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void delete(final TextChannel channel, final List<Message> invocations) {
+        if (!channel.getGuild().getSelfMember().hasPermission(channel, Permission.MESSAGE_MANAGE)) {
+            return;
+        }
+
+        for (int i = 0; i < invocations.size(); i += VoteAcknowledger.BULK_DELETE) {
+            final List<Message> chunk = invocations.subList(i, Math.min(i + VoteAcknowledger.BULK_DELETE, invocations.size()));
+
+            // Bulk deletion needs at least two messages
+            if (chunk.size() == 1) {
+                chunk.get(0).delete().queue();
+            } else {
+                channel.deleteMessages(new ArrayList<>(chunk)).queue();
+            }
+        }
+    }
+
+    /**
+     * Sends the confirmations in every open window now.
+     */
+    public void flush() {
+        for (final Long channel_id : this.windows.keySet()) {
+            this.flush(channel_id);
+        }
+    }
+
+    /**
+     * Closes the window open in a channel and sends its confirmations.
+     * @param channel_id The snowflake of the channel
+     */
+    private void flush(final long channel_id) {
+        final Window window = this.windows.remove(channel_id);
+
+        if (window == null) {
+            return;
+        }
+
+        try {
+            final StringBuilder sb = new StringBuilder();
+            int omitted = 0;
+
+            for (final String line : window.lines) {
+                // Leave room for the count of confirmations omitted
+                if (omitted > 0 || sb.length() + line.length() + 1 > VoteAcknowledger.MAXIMUM_LENGTH - 40) {
+                    omitted++;
+                    continue;
+                }
+
+                sb.append(line).append("\n");
+            }
+
+            if (omitted > 0) {
+                sb.append("...and ").append(omitted).append(omitted == 1 ? " other vote" : " other votes").append(" recorded.");
+            }
+
+            window.channel.sendMessage(sb.toString().trim()).queue();
+
+            if (VoteAcknowledger.DELETE) {
+                this.delete(window.channel, window.invocations);
+            }
+        } catch (final Exception e) {
+            Hilda.getLogger().log(Level.WARNING, "Failed to acknowledge " + window.lines.size() + " votes", e);
+        }
+    }
+
+}
@@ -0,0 +1,546 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * An append-only archive of finished votes and their ballots.
+ * <p>
+ * Finished votes are collected into blocks of up to {@value #BLOCK_SIZE}, and each block is compressed and appended to
+ * the data file. For every block the index file holds a fixed-size entry with the block's position, the range of
+ * times its votes finished in and a Bloom filter of the guilds, channels, openers and IDs of its votes. A search reads
+ * the index from newest to oldest and only reads and decompresses the blocks whose entry might match, stopping once it
+ * has found enough votes, so neither a search nor the archive itself holds more than one block in memory however large
+ * the archive grows.
+ * <p>
+ * Blocks are written in the background, so finishing a vote never waits on the disk. A block is written once it is
+ * full or once its oldest vote has waited for the flush interval, which can be set in milliseconds with
+ * {@code -Dhilda.vote.archive.flush}. Each block is synced before its index entry is written, and
+ * anything after the last complete entry is discarded when the archive is opened, so a crash never leaves an entry
+ * pointing at a partial block.
+ */
+public class VoteArchive {
+    public static final long FLUSH = Long.getLong("hilda.vote.archive.flush", 60000); // 1 minute
+    private static final int BLOCK_SIZE = 64;
+    private static final int FILTER_BITS = 2048;
+    private static final int FILTER_HASHES = 3;
+
+    /**
+     * offset, length, count, first, last, checksum, filter
+     */
+    private static final int ENTRY_SIZE = 8 + 4 + 4 + 8 + 8 + 4 + VoteArchive.FILTER_BITS / 8;
+
+    /**
+     * Entries are read from the index this many at a time.
+     */
+    private static final int ENTRIES_PER_READ = 64;
+
+    /**
+     * A finished vote as it was archived.
+     */
+    public static final class Record {
+        public final String id;
+        public final String guild_id;
+        public final String channel_id;
+        public final String opener_id;
+        public final String opener;
+        public final String question;
+        public final Integer percent;
+        public final long commencement;
+        public final long finished;
+        public final long[] users;
+        public final byte[] responses;
+
+        private Record(final String id, final String guild_id, final String channel_id, final String opener_id, final String opener, final String question, final Integer percent, final long commencement, final long finished, final long[] users, final byte[] responses) {
+            this.id = id;
+            this.guild_id = guild_id;
+            this.channel_id = channel_id;
+            this.opener_id = opener_id;
+            this.opener = opener;
+            this.question = question;
+            this.percent = percent;
+            this.commencement = commencement;
+            this.finished = finished;
+            this.users = users;
+            this.responses = responses;
+        }
+
+        /**
+         * Counts the ballots cast for a response.
+         * @param response The response
+         * @return The number of ballots
+         */
+        public int getCount(final VoteResponse response) {
+            int count = 0;
+
+            for (final byte b : this.responses) {
+                if (b == response.ordinal()) {
+                    count++;
+                }
+            }
+
+            return count;
+        }
+
+        private boolean matches(final String guild_id, final String channel_id, final String opener_id, final String id, final long from, final long to) {
+            return (guild_id == null || guild_id.equals(this.guild_id)) && (channel_id == null || channel_id.equals(this.channel_id)) && (opener_id == null || opener_id.equals(this.opener_id)) && (id == null || id.equalsIgnoreCase(this.id)) && this.finished >= from && this.finished <= to;
+        }
+    }
+
+    private static void filter(final long[] filter, final String field, final String value) {
+        if (value == null) {
+            return;
+        }
+
+        long hash = (field + ":" + value.toLowerCase()).hashCode() * 0x9e3779b97f4a7c15L;
+        hash ^= hash >>> 31;
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+
+        for (int i = 0; i < VoteArchive.FILTER_HASHES; i++) {
+            final int bit = (h1 + i * h2 & Integer.MAX_VALUE) % VoteArchive.FILTER_BITS;
+            filter[bit >> 6] |= 1L << (bit & 63);
+        }
+    }
+
+    private static boolean mightContain(final long[] filter, final String field, final String value) {
+        if (value == null) {
+            return true;
+        }
+
+        final long[] probe = new long[filter.length];
+        VoteArchive.filter(probe, field, value);
+
+        for (int i = 0; i < filter.length; i++) {
+            if ((filter[i] & probe[i]) != probe[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        out.writeBoolean(value != null);
+
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private final File folder;
+    private final ScheduledExecutorService executor;
+    private final List<Record> pending = new ArrayList<>();
+    private boolean requested = false;
+
+    /**
+     * Searches share this lock while they read the files, so the files are never closed under them. It is taken before
+     * the archive's monitor.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel data;
+    private FileChannel index;
+
+    public VoteArchive(final File folder, final String name) {
+        this.folder = folder;
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Adds a finished vote to the archive. The vote is written in the background, and dropped with a warning if the
+     * archive is not open.
+     * @param vote The vote
+     * @param ballots The ballots cast in the vote
+     * @param finished The time the vote finished, in milliseconds since the epoch
+     */
+    public void add(final Vote vote, final BallotMap.Snapshot ballots, final long finished) {
+        final Record record = new Record(vote.getId(), vote.getGuildId(), vote.getChannelId(), vote.getOpenerId(), vote.getOpener(), vote.getQuestion(), vote.getPercent(), vote.getCommencement(), finished, ballots.users, ballots.responses);
+
+        synchronized (this) {
+            if (this.data == null) {
+                // Nothing would ever write the record, so holding it would only grow the heap
+                Hilda.getLogger().warning("Not archiving vote " + record.id + " as the vote archive in " + this.folder + " is not open");
+                return;
+            }
+
+            this.pending.add(record);
+
+            if (this.pending.size() >= VoteArchive.BLOCK_SIZE && !this.requested && !this.executor.isShutdown()) {
+                this.requested = true;
+                this.executor.execute(() -> this.flush(true));
+            }
+        }
+    }
+
+    /**
+     * Stops writing in the background, writes the finished votes still waiting to be archived and closes the archive.
+     * Waits for any search in progress.
+     */
+    public void close() {
+        synchronized (this) {
+            this.executor.shutdown();
+        }
+
+        try {
+            this.executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.lock.writeLock().lock();
+
+        try {
+            synchronized (this) {
+                this.flush(true);
+
+                try {
+                    if (this.data != null) {
+                        this.data.close();
+                    }
+
+                    if (this.index != null) {
+                        this.index.close();
+                    }
+                } catch (final IOException e) {
+                    Hilda.getLogger().log(Level.WARNING, "Failed to close the vote archive", e);
+                }
+
+                this.data = null;
+                this.index = null;
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the finished votes waiting to be archived as a block.
+     * @param force Whether to write them even if the oldest has not waited for the flush interval
+     */
+    public synchronized void flush(final boolean force) {
+        this.requested = false;
+
+        if (this.pending.isEmpty()) {
+            return;
+        }
+
+        if (force || System.currentTimeMillis() - this.pending.get(0).finished >= VoteArchive.FLUSH) {
+            this.write();
+        }
+    }
+
+    /**
+     * Opens the archive, discarding anything left incomplete by a crash, and starts writing in the background.
+     * @throws IOException if the archive cannot be opened
+     */
+    public void open() throws IOException {
+        this.lock.writeLock().lock();
+
+        try {
+            synchronized (this) {
+                this.openFiles();
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+
+        this.executor.scheduleWithFixedDelay(() -> this.flush(false), 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void openFiles() throws IOException {
+        if (!this.folder.isDirectory()) {
+            this.folder.mkdirs();
+        }
+
+        this.data = FileChannel.open(new File(this.folder, "archive.dat").toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.index = FileChannel.open(new File(this.folder, "archive.idx").toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long entries = this.index.size() / VoteArchive.ENTRY_SIZE;
+        long end = 0;
+
+        while (entries > 0) {
+            final ByteBuffer entry = ByteBuffer.allocate(12);
+            this.index.read(entry, (entries - 1) * VoteArchive.ENTRY_SIZE);
+            entry.flip();
+            end = entry.getLong() + entry.getInt();
+
+            if (end <= this.data.size()) {
+                break;
+            }
+
+            // The entry points past the data, so its block never finished writing
+            entries--;
+            end = 0;
+        }
+
+        this.index.truncate(entries * VoteArchive.ENTRY_SIZE);
+        this.data.truncate(end);
+    }
+
+    /**
+     * Reads the records in a block.
+     */
+    private List<Record> read(final FileChannel data, final long offset, final int length, final int checksum) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Archive block at " + offset + " is truncated");
+            }
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array());
+
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Archive block at " + offset + " is corrupt");
+        }
+
+        final ArrayList<Record> records = new ArrayList<>();
+
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(buffer.array())))) {
+            final int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                final String id = in.readUTF();
+                final String guild_id = VoteArchive.readString(in);
+                final String channel_id = VoteArchive.readString(in);
+                final String opener_id = VoteArchive.readString(in);
+                final String opener = VoteArchive.readString(in);
+                final String question = VoteArchive.readString(in);
+                final int percent = in.readShort();
+                final long commencement = in.readLong();
+                final long finished = in.readLong();
+                final long[] users = new long[in.readInt()];
+                final byte[] responses = new byte[users.length];
+
+                for (int u = 0; u < users.length; u++) {
+                    users[u] = in.readLong();
+                }
+
+                in.readFully(responses);
+                records.add(new Record(id, guild_id, channel_id, opener_id, opener, question, percent < 0 ? null : percent, commencement, finished, users, responses));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Finds finished votes, newest first. Criteria that are null are not used.
+     * @param guild_id The ID of the guild the votes were held in
+     * @param channel_id The ID of the channel the votes were held in
+     * @param opener_id The ID of the member who opened the votes
+     * @param id The ID of the vote
+     * @param from The earliest time the votes finished, in milliseconds since the epoch
+     * @param to The latest time the votes finished, in milliseconds since the epoch
+     * @param limit The most votes to find
+     * @return The votes
+     * @throws IOException if the archive cannot be read
+     */
+    public List<Record> search(final String guild_id, final String channel_id, final String opener_id, final String id, final long from, final long to, final int limit) throws IOException {
+        this.lock.readLock().lock();
+
+        try {
+            final ArrayList<Record> found = new ArrayList<>();
+            final FileChannel data;
+            final FileChannel index;
+            final long entries;
+
+            synchronized (this) {
+                for (int i = this.pending.size() - 1; i >= 0 && found.size() < limit; i--) {
+                    if (this.pending.get(i).matches(guild_id, channel_id, opener_id, id, from, to)) {
+                        found.add(this.pending.get(i));
+                    }
+                }
+
+                if (this.index == null) {
+                    return found;
+                }
+
+                // Blocks are complete before their entries are written, and the files stay open while the lock is held
+                data = this.data;
+                index = this.index;
+                entries = this.index.size() / VoteArchive.ENTRY_SIZE;
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(VoteArchive.ENTRY_SIZE * VoteArchive.ENTRIES_PER_READ);
+            final long[] filter = new long[VoteArchive.FILTER_BITS / 64];
+            long next = entries;
+
+            while (next > 0 && found.size() < limit) {
+                final long first = Math.max(0, next - VoteArchive.ENTRIES_PER_READ);
+
+                buffer.clear();
+                buffer.limit((int) (next - first) * VoteArchive.ENTRY_SIZE);
+
+                while (buffer.hasRemaining()) {
+                    if (index.read(buffer, first * VoteArchive.ENTRY_SIZE + buffer.position()) < 0) {
+                        throw new IOException("Archive index is truncated");
+                    }
+                }
+
+                for (long e = next - 1; e >= first && found.size() < limit; e--) {
+                    buffer.position((int) (e - first) * VoteArchive.ENTRY_SIZE);
+
+                    final long offset = buffer.getLong();
+                    final int length = buffer.getInt();
+                    buffer.getInt(); // count
+                    final long earliest = buffer.getLong();
+                    final long latest = buffer.getLong();
+                    final int checksum = buffer.getInt();
+
+                    for (int i = 0; i < filter.length; i++) {
+                        filter[i] = buffer.getLong();
+                    }
+
+                    if (latest < from || earliest > to || !VoteArchive.mightContain(filter, "g", guild_id) || !VoteArchive.mightContain(filter, "c", channel_id) || !VoteArchive.mightContain(filter, "o", opener_id) || !VoteArchive.mightContain(filter, "i", id)) {
+                        continue;
+                    }
+
+                    final List<Record> records = this.read(data, offset, length, checksum);
+
+                    for (int r = records.size() - 1; r >= 0 && found.size() < limit; r--) {
+                        if (records.get(r).matches(guild_id, channel_id, opener_id, id, from, to)) {
+                            found.add(records.get(r));
+                        }
+                    }
+                }
+
+                next = first;
+            }
+
+            return found;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compresses the waiting votes into a block and appends it. If the block cannot be written the votes are kept and
+     * tried again at the next flush.
+     */
+    private void write() {
+        if (this.data == null) {
+            return;
+        }
+
+        final long[] filter = new long[VoteArchive.FILTER_BITS / 64];
+        long earliest = Long.MAX_VALUE;
+        long latest = Long.MIN_VALUE;
+
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                out.writeInt(this.pending.size());
+
+                for (final Record record : this.pending) {
+                    out.writeUTF(record.id);
+                    VoteArchive.writeString(out, record.guild_id);
+                    VoteArchive.writeString(out, record.channel_id);
+                    VoteArchive.writeString(out, record.opener_id);
+                    VoteArchive.writeString(out, record.opener);
+                    VoteArchive.writeString(out, record.question);
+                    out.writeShort(record.percent == null ? -1 : record.percent);
+                    out.writeLong(record.commencement);
+                    out.writeLong(record.finished);
+                    out.writeInt(record.users.length);
+
+                    for (final long user : record.users) {
+                        out.writeLong(user);
+                    }
+
+                    out.write(record.responses);
+
+                    VoteArchive.filter(filter, "g", record.guild_id);
+                    VoteArchive.filter(filter, "c", record.channel_id);
+                    VoteArchive.filter(filter, "o", record.opener_id);
+                    VoteArchive.filter(filter, "i", record.id);
+                    earliest = Math.min(earliest, record.finished);
+                    latest = Math.max(latest, record.finished);
+                }
+            }
+
+            final byte[] block = bytes.toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update(block);
+
+            final long offset = this.data.size();
+            final ByteBuffer buffer = ByteBuffer.wrap(block);
+
+            while (buffer.hasRemaining()) {
+                this.data.write(buffer, offset + buffer.position());
+            }
+
+            this.data.force(false);
+
+            final ByteBuffer entry = ByteBuffer.allocate(VoteArchive.ENTRY_SIZE);
+            entry.putLong(offset).putInt(block.length).putInt(this.pending.size()).putLong(earliest).putLong(latest).putInt((int) crc.getValue());
+
+            for (final long word : filter) {
+                entry.putLong(word);
+            }
+
+            entry.flip();
+
+            // Start after the last complete entry in case an earlier write failed part way through
+            final long position = this.index.size() / VoteArchive.ENTRY_SIZE * VoteArchive.ENTRY_SIZE;
+
+            while (entry.hasRemaining()) {
+                this.index.write(entry, position + entry.position());
+            }
+
+            this.index.force(false);
+
+            Hilda.getLogger().fine("Archived " + this.pending.size() + " votes in " + block.length + " bytes");
+            this.pending.clear();
+        } catch (final IOException e) {
+            Hilda.getLogger().log(Level.SEVERE, "Failed to archive " + this.pending.size() + " votes", e);
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Writes snapshots of the open votes in a partition in the background whenever they have changed.
+ * <p>
+ * A checkpoint is written once the votes have been quiet for the checkpoint interval, or once the oldest unsaved change
+ * reaches the maximum staleness, whichever comes first. Every checkpoint writes all of the partition's open votes; the
+ * votes marked as changed only decide when one is due. Snapshots are written to a temporary file, synced and renamed
+ * over the previous snapshot, so a crash part way through never leaves a truncated snapshot behind. After each
+ * checkpoint the journal segments it covers are discarded.
+ * <p>
+ * The interval and staleness can be set in milliseconds with {@code -Dhilda.vote.checkpoint.interval} and
+ * {@code -Dhilda.vote.checkpoint.staleness}.
+ */
+public class VoteCheckpointer {
+    public static final long INTERVAL = Long.getLong("hilda.vote.checkpoint.interval", 30000); // 30 seconds
+    public static final long STALENESS = Long.getLong("hilda.vote.checkpoint.staleness", 300000); // 5 minutes
+
+    private final VotePlugin plugin;
+    private final FileVoteStore store;
+    private final File file;
+    private final ScheduledExecutorService executor;
+
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicLong first = new AtomicLong(Long.MAX_VALUE);
+    private volatile long last = Long.MAX_VALUE;
+
+    private volatile long duration = -1;
+    private volatile long size = -1;
+
+    public VoteCheckpointer(final VotePlugin plugin, final FileVoteStore store) {
+        this.plugin = plugin;
+        this.store = store;
+        this.file = store.getFile();
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, VoteShards.isEnabled() ? "vote-checkpoint-" + store.getPartition().getShard() : "vote-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Writes a checkpoint now if anything has changed since the last one.
+     * @param force Whether to write even if nothing has changed
+     * @return Whether the snapshot on disk is up to date
+     */
+    public synchronized boolean checkpoint(final boolean force) {
+        if (!force && this.dirty.isEmpty()) {
+            return true;
+        }
+
+        // Reset the clock before taking the changes so that a change made in between is never left without one
+        this.first.set(Long.MAX_VALUE);
+        this.last = Long.MAX_VALUE;
+
+        final List<String> changed = new ArrayList<>(this.dirty);
+        this.dirty.removeAll(changed);
+
+        final VoteJournal journal = this.store.getJournal();
+        final long start = System.nanoTime();
+
+        try {
+            final long segment = journal == null ? -1 : journal.rotate();
+
+            this.size = this.write();
+            this.duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            this.plugin.getMetrics().getSave().since(start);
+
+            if (journal != null) {
+                journal.discard(segment - 1);
+            }
+
+            Hilda.getLogger().fine("Checkpointed " + changed.size() + " changed of " + this.plugin.getVoteCount() + " votes in " + this.duration + "ms (" + this.size + " bytes)");
+            return true;
+        } catch (final Exception e) {
+            Hilda.getLogger().log(Level.SEVERE, "Failed to save votes to disk", e);
+
+            // Try again on the next tick
+            this.dirty.addAll(changed);
+            this.first.compareAndSet(Long.MAX_VALUE, 0);
+            this.last = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Gets how long the last checkpoint took to write.
+     * @return The duration in milliseconds or -1 if none has been written
+     */
+    public long getLastDuration() {
+        return this.duration;
+    }
+
+    /**
+     * Gets the size of the last checkpoint written.
+     * @return The size in bytes or -1 if none has been written
+     */
+    public long getLastSize() {
+        return this.size;
+    }
+
+    /**
+     * Records that a vote has changed and must be included in the next checkpoint.
+     * @param vote The vote
+     */
+    public void mark(final Vote vote) {
+        final long now = System.currentTimeMillis();
+
+        this.dirty.add(vote.getId());
+        this.first.compareAndSet(Long.MAX_VALUE, now);
+        this.last = now;
+    }
+
+    /**
+     * Stops checkpointing in the background and writes a final checkpoint if anything has changed.
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+
+        try {
+            this.executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.checkpoint(false);
+    }
+
+    /**
+     * Starts checking for changes in the background.
+     */
+    public void start() {
+        this.executor.scheduleWithFixedDelay(this::tick, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void tick() {
+        final long now = System.currentTimeMillis();
+        final long first = this.first.get();
+
+        if (first == Long.MAX_VALUE) {
+            return;
+        }
+
+        if (now - this.last >= VoteCheckpointer.INTERVAL || now - first >= VoteCheckpointer.STALENESS) {
+            this.checkpoint(false);
+        }
+    }
+
+    private long write() throws IOException {
+        final File folder = this.file.getAbsoluteFile().getParentFile();
+
+        if (!folder.isDirectory()) {
+            folder.mkdirs();
+        }
+
+        final File temporary = new File(folder, this.file.getName() + ".tmp");
+        final long size;
+
+        try (FileOutputStream stream = new FileOutputStream(temporary, false)) {
+            size = VoteSnapshot.write(this.store.getPartition().getVotes(), stream);
+            stream.getFD().sync();
+        }
+
+        Files.move(temporary.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        try (FileChannel directory = FileChannel.open(folder.toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (final IOException ignored) {
+            // Not every platform can sync a directory
+        }
+
+        return size;
+    }
+
+}
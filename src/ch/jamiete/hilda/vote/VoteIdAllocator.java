@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+/**
+ * Hands out short vote IDs made of a letter followed by digits, such as {@code a2} or {@code k47}.
+ * <p>
+ * IDs of each length are tracked in their own bitmap. New IDs come from the shortest length that is less than three
+ * quarters used, so IDs stay two characters long until there are well over a hundred open votes and only grow as long
+ * as the load requires. Each bitmap is searched from where the last ID was found, so allocating and releasing take
+ * constant time on average. Letters and digits that are easily confused are never used.
+ */
+public class VoteIdAllocator {
+    private static final String LETTERS = "abcdefghijkmnpqrstuvwxyz";
+    private static final String DIGITS = "23456789";
+    private static final int MAXIMUM_DIGITS = 6;
+
+    private static final class Tier {
+        private final int digits;
+        private final int size;
+        private final long[] words;
+        private int used = 0;
+        private int cursor = 0;
+
+        private Tier(final int digits) {
+            int size = VoteIdAllocator.LETTERS.length();
+
+            for (int i = 0; i < digits; i++) {
+                size *= VoteIdAllocator.DIGITS.length();
+            }
+
+            this.digits = digits;
+            this.size = size;
+            this.words = new long[size >> 6];
+        }
+
+        private int allocate() {
+            for (int i = 0; i < this.words.length; i++) {
+                final int word = this.cursor;
+
+                if (this.words[word] != -1L) {
+                    final int bit = Long.numberOfTrailingZeros(~this.words[word]);
+
+                    this.words[word] |= 1L << bit;
+                    this.used++;
+                    return word << 6 | bit;
+                }
+
+                this.cursor = this.cursor + 1 == this.words.length ? 0 : this.cursor + 1;
+            }
+
+            return -1;
+        }
+
+        private boolean isFull() {
+            return this.used >= this.size - (this.size >> 2);
+        }
+
+        private boolean set(final int index, final boolean used) {
+            final long mask = 1L << (index & 63);
+            final boolean was = (this.words[index >> 6] & mask) != 0;
+
+            if (was == used) {
+                return false;
+            }
+
+            this.words[index >> 6] ^= mask;
+            this.used += used ? 1 : -1;
+            return true;
+        }
+    }
+
+    private final Tier[] tiers = new Tier[VoteIdAllocator.MAXIMUM_DIGITS];
+
+    /**
+     * Allocates an ID that is not in use.
+     * @return The ID
+     * @throws IllegalStateException if every ID is in use
+     */
+    public synchronized String allocate() {
+        for (int i = 0; i < this.tiers.length; i++) {
+            final Tier tier = this.tier(i + 1);
+
+            if (tier.isFull() && i + 1 < this.tiers.length) {
+                continue;
+            }
+
+            final int index = tier.allocate();
+
+            if (index >= 0) {
+                return this.format(tier, index);
+            }
+        }
+
+        throw new IllegalStateException("Every vote ID is in use");
+    }
+
+    private String format(final Tier tier, int index) {
+        final char[] chars = new char[tier.digits + 1];
+
+        for (int i = tier.digits; i > 0; i--) {
+            chars[i] = VoteIdAllocator.DIGITS.charAt(index % VoteIdAllocator.DIGITS.length());
+            index /= VoteIdAllocator.DIGITS.length();
+        }
+
+        chars[0] = VoteIdAllocator.LETTERS.charAt(index);
+        return new String(chars);
+    }
+
+    /**
+     * Finds where an ID is kept.
+     * @param id The ID
+     * @return The index of the ID within the bitmap for its length or -1 if it is not one this allocator hands out
+     */
+    private int parse(final String id) {
+        final int digits = id.length() - 1;
+
+        if (digits < 1 || digits > VoteIdAllocator.MAXIMUM_DIGITS) {
+            return -1;
+        }
+
+        int index = VoteIdAllocator.LETTERS.indexOf(Character.toLowerCase(id.charAt(0)));
+
+        if (index < 0) {
+            return -1;
+        }
+
+        for (int i = 1; i <= digits; i++) {
+            final int digit = VoteIdAllocator.DIGITS.indexOf(id.charAt(i));
+
+            if (digit < 0) {
+                return -1;
+            }
+
+            index = index * VoteIdAllocator.DIGITS.length() + digit;
+        }
+
+        return index;
+    }
+
+    /**
+     * Releases an ID so that it can be allocated again. IDs this allocator could not have handed out are ignored.
+     * @param id The ID
+     */
+    public synchronized void release(final String id) {
+        final int index = this.parse(id);
+
+        if (index >= 0) {
+            this.tier(id.length() - 1).set(index, false);
+        }
+    }
+
+    /**
+     * Marks an ID as in use without allocating it, such as for a vote loaded from disk. IDs this allocator could not
+     * have handed out are ignored.
+     * @param id The ID
+     * @return Whether the ID was free
+     */
+    public synchronized boolean reserve(final String id) {
+        final int index = this.parse(id);
+        return index < 0 || this.tier(id.length() - 1).set(index, true);
+    }
+
+    private Tier tier(final int digits) {
+        // Longer IDs are only given bitmaps once they are needed
+        if (this.tiers[digits - 1] == null) {
+            this.tiers[digits - 1] = new Tier(digits);
+        }
+
+        return this.tiers[digits - 1];
+    }
+
+}
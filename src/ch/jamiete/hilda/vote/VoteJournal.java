@@ -0,0 +1,524 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * An append-only log of every change made to the open votes. The log is split into numbered segments; replaying the
+ * segments in order over the last snapshot restores the state at the time of the last write.
+ * <p>
+ * Records are queued by the thread making the change and encoded and written by a single background thread, which syncs
+ * the file once per batch so that a burst of ballots costs one sync. Every record is idempotent, so a segment may safely be
+ * replayed over a snapshot that already contains some of its changes.
+ */
+public class VoteJournal {
+    private static final byte START = 0;
+    private static final byte CLOSE = 3;
+    private static final byte DELETE = 4;
+    private static final byte MESSAGE = 5;
+    private static final byte REGISTER = 6;
+    private static final byte UNREGISTER = 7;
+
+    /**
+     * Ballots journalled before user snowflakes were written as longs, which are still replayed after an upgrade.
+     */
+    private static final byte TEXT_REGISTER = 1;
+    private static final byte TEXT_UNREGISTER = 2;
+
+    private static final String PREFIX = "votes.journal.";
+    private static final long RETRY = 1000; // 1 second
+    private static final long MAXIMUM_RETRY = 30000; // 30 seconds
+
+    private final File folder;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    private FileChannel channel;
+    private long segment;
+    private volatile boolean running = true;
+
+    public VoteJournal(final File folder) {
+        this.folder = folder;
+
+        this.writer = new Thread(this::run, "vote-journal");
+        this.writer.setDaemon(true);
+    }
+
+    private static void apply(final DataInputStream in, final Map<String, Vote> votes) throws IOException {
+        final byte type = in.readByte();
+        final String id = in.readUTF();
+        final String key = id.toLowerCase();
+
+        switch (type) {
+            case START:
+                final Vote vote = new Vote();
+                vote.setId(id);
+                vote.setChannelId(VoteSnapshot.parseSnowflake(VoteJournal.readString(in)));
+                vote.setGuildId(VoteSnapshot.parseSnowflake(VoteJournal.readString(in)));
+                vote.setOpener(VoteJournal.readString(in));
+                vote.setOpenerId(VoteJournal.readString(in));
+                vote.setAvatar(VoteJournal.readString(in));
+                vote.setQuestion(VoteJournal.readString(in));
+
+                final int percent = in.readInt();
+                vote.setPercent(percent < 0 ? null : percent);
+                vote.setCommencement(in.readLong());
+
+                votes.put(key, vote);
+                break;
+
+            case REGISTER:
+            case TEXT_REGISTER: {
+                final Vote target = votes.get(key);
+                final long user = type == VoteJournal.REGISTER ? in.readLong() : Long.parseUnsignedLong(in.readUTF());
+                final VoteResponse response = VoteResponse.values()[in.readByte()];
+
+                if (target != null) {
+                    target.register(user, response);
+                }
+                break;
+            }
+
+            case UNREGISTER:
+            case TEXT_UNREGISTER: {
+                final Vote target = votes.get(key);
+                final long user = type == VoteJournal.UNREGISTER ? in.readLong() : Long.parseUnsignedLong(in.readUTF());
+
+                if (target != null) {
+                    target.unregister(user);
+                }
+                break;
+            }
+
+            case MESSAGE: {
+                final Vote target = votes.get(key);
+                final long message = in.readLong();
+
+                if (target != null) {
+                    target.setMessageId(message);
+                }
+                break;
+            }
+
+            case CLOSE:
+            case DELETE:
+                votes.remove(key);
+                break;
+
+            default:
+                throw new IOException("Unknown journal record " + type);
+        }
+    }
+
+    private static byte[] encode(final byte type, final Writer writer) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            final DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeByte(type);
+            writer.write(out);
+            out.flush();
+
+            final byte[] payload = bytes.toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            final ByteBuffer record = ByteBuffer.allocate(payload.length + 8);
+            record.putInt(payload.length);
+            record.putInt((int) crc.getValue());
+            record.put(payload);
+            return record.array();
+        } catch (final IOException e) {
+            // ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        out.writeBoolean(value != null);
+
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private void append(final byte type, final Writer writer) {
+        if (this.running) {
+            this.queue.add(new Record(type, writer));
+        }
+    }
+
+    /**
+     * Records that a vote has finished.
+     * @param vote The vote
+     */
+    public void close(final Vote vote) {
+        final String id = vote.getId();
+        this.append(VoteJournal.CLOSE, out -> out.writeUTF(id));
+    }
+
+    /**
+     * Records that a vote has been deleted without finishing.
+     * @param vote The vote
+     */
+    public void delete(final Vote vote) {
+        final String id = vote.getId();
+        this.append(VoteJournal.DELETE, out -> out.writeUTF(id));
+    }
+
+    /**
+     * Deletes every segment older than the one given. Call this once a snapshot taken after the given segment was
+     * opened has been written.
+     * @param keep The oldest segment to keep
+     */
+    public void discard(final long keep) {
+        for (final long number : this.getSegments()) {
+            if (number < keep) {
+                new File(this.folder, VoteJournal.PREFIX + number).delete();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of the segment currently being written.
+     * @return The segment number
+     */
+    public synchronized long getSegment() {
+        return this.segment;
+    }
+
+    private long[] getSegments() {
+        final String[] names = this.folder.list((dir, name) -> name.startsWith(VoteJournal.PREFIX));
+
+        if (names == null) {
+            return new long[0];
+        }
+
+        final ArrayList<Long> numbers = new ArrayList<>();
+
+        for (final String name : names) {
+            try {
+                numbers.add(Long.parseLong(name.substring(VoteJournal.PREFIX.length())));
+            } catch (final NumberFormatException ignored) {
+                // Not a segment
+            }
+        }
+
+        final long[] result = numbers.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Opens a new segment after the existing ones and starts writing.
+     * @throws IOException if the segment cannot be created
+     */
+    public synchronized void open() throws IOException {
+        if (!this.folder.isDirectory()) {
+            this.folder.mkdirs();
+        }
+
+        final long[] segments = this.getSegments();
+        this.segment = segments.length == 0 ? 0 : segments[segments.length - 1];
+        this.channel = this.openSegment(++this.segment);
+
+        this.writer.start();
+    }
+
+    private FileChannel openSegment(final long number) throws IOException {
+        return FileChannel.open(new File(this.folder, VoteJournal.PREFIX + number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Records the message posted when a vote opened.
+     * @param vote The vote
+     */
+    public void message(final Vote vote) {
+        final String id = vote.getId();
+        final long message = vote.getMessageId();
+
+        this.append(VoteJournal.MESSAGE, out -> {
+            out.writeUTF(id);
+            out.writeLong(message);
+        });
+    }
+
+    /**
+     * Records a ballot.
+     * @param vote The vote
+     * @param user The snowflake of the user voting
+     * @param response Their response
+     */
+    public void register(final Vote vote, final long user, final VoteResponse response) {
+        final String id = vote.getId();
+
+        this.append(VoteJournal.REGISTER, out -> {
+            out.writeUTF(id);
+            out.writeLong(user);
+            out.writeByte(response.ordinal());
+        });
+    }
+
+    /**
+     * Applies the records in every segment to a set of votes, in order.
+     * @param votes The votes loaded from the last snapshot, keyed by lower case ID
+     * @return The number of records applied
+     */
+    public int replay(final Map<String, Vote> votes) {
+        int applied = 0;
+
+        for (final long number : this.getSegments()) {
+            final File file = new File(this.folder, VoteJournal.PREFIX + number);
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    final byte[] payload;
+
+                    try {
+                        final int length = in.readInt();
+                        final int checksum = in.readInt();
+
+                        if (length <= 0 || length > 1 << 20) {
+                            throw new EOFException();
+                        }
+
+                        payload = new byte[length];
+                        in.readFully(payload);
+
+                        final CRC32 crc = new CRC32();
+                        crc.update(payload);
+
+                        if ((int) crc.getValue() != checksum) {
+                            throw new EOFException();
+                        }
+                    } catch (final EOFException e) {
+                        // The last write before a crash may be incomplete
+                        break;
+                    }
+
+                    VoteJournal.apply(new DataInputStream(new ByteArrayInputStream(payload)), votes);
+                    applied++;
+                }
+            } catch (final IOException e) {
+                Hilda.getLogger().log(Level.SEVERE, "Failed to replay vote journal " + file.getName(), e);
+            }
+        }
+
+        return applied;
+    }
+
+    /**
+     * Closes the current segment and starts writing to a new one.
+     * @return The number of the new segment
+     * @throws IOException if the new segment cannot be created
+     */
+    public synchronized long rotate() throws IOException {
+        final FileChannel next = this.openSegment(this.segment + 1);
+
+        this.channel.force(false);
+        this.channel.close();
+
+        this.channel = next;
+        return ++this.segment;
+    }
+
+    private void run() {
+        final ArrayList<Record> batch = new ArrayList<>();
+        int failures = 0;
+
+        while (this.running || !this.queue.isEmpty() || !batch.isEmpty()) {
+            try {
+                // A batch that failed is kept and written again, ahead of anything queued since
+                if (batch.isEmpty()) {
+                    final Record first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+
+                    if (first == null) {
+                        continue;
+                    }
+
+                    batch.add(first);
+                }
+
+                this.queue.drainTo(batch);
+
+                try {
+                    this.write(batch);
+                } catch (final IOException e) {
+                    failures++;
+                    Hilda.getLogger().log(Level.SEVERE, "Failed to write " + batch.size() + " records to the vote journal (attempt " + failures + ")", e);
+
+                    if (!this.running && failures > 1) {
+                        Hilda.getLogger().severe("Gave up writing to the vote journal while shutting down; " + batch.size() + " changes since the last checkpoint are lost");
+                        return;
+                    }
+
+                    Thread.sleep(Math.min(VoteJournal.RETRY << Math.min(failures - 1, 5), VoteJournal.MAXIMUM_RETRY));
+                    continue;
+                }
+
+                if (failures > 0) {
+                    Hilda.getLogger().info("Wrote to the vote journal after " + failures + " failed attempts");
+                    failures = 0;
+                }
+
+                batch.clear();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes any queued records and stops the writer.
+     */
+    public void shutdown() {
+        this.running = false;
+
+        try {
+            this.writer.join(10000);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            try {
+                if (this.channel != null) {
+                    this.channel.close();
+                }
+            } catch (final IOException e) {
+                Hilda.getLogger().log(Level.WARNING, "Failed to close the vote journal", e);
+            }
+        }
+    }
+
+    /**
+     * Appends a batch of records to the current segment and syncs it. If the batch cannot be written in full, whatever
+     * part of it was written is cut off again so that the batch can be retried without leaving a torn record behind.
+     * @param batch The records
+     * @throws IOException if the batch could not be written
+     */
+    private synchronized void write(final List<Record> batch) throws IOException {
+        final long size = this.channel.size();
+
+        try {
+            for (final Record record : batch) {
+                final ByteBuffer buffer = ByteBuffer.wrap(record.encode());
+
+                while (buffer.hasRemaining()) {
+                    this.channel.write(buffer);
+                }
+            }
+
+            this.channel.force(false);
+        } catch (final IOException e) {
+            try {
+                this.channel.truncate(size);
+            } catch (final IOException ex) {
+                e.addSuppressed(ex);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Records that a vote has been opened.
+     * @param vote The vote
+     */
+    public void start(final Vote vote) {
+        this.append(VoteJournal.START, out -> {
+            out.writeUTF(vote.getId());
+            VoteJournal.writeString(out, vote.getChannelId());
+            VoteJournal.writeString(out, vote.getGuildId());
+            VoteJournal.writeString(out, vote.getOpener());
+            VoteJournal.writeString(out, vote.getOpenerId());
+            VoteJournal.writeString(out, vote.getAvatar());
+            VoteJournal.writeString(out, vote.getQuestion());
+            out.writeInt(vote.getPercent() == null ? -1 : vote.getPercent());
+            out.writeLong(vote.getCommencement());
+        });
+    }
+
+    /**
+     * Records that a ballot has been removed.
+     * @param vote The vote
+     * @param user The snowflake of the user whose ballot was removed
+     */
+    public void unregister(final Vote vote, final long user) {
+        final String id = vote.getId();
+
+        this.append(VoteJournal.UNREGISTER, out -> {
+            out.writeUTF(id);
+            out.writeLong(user);
+        });
+    }
+
+    @FunctionalInterface
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * A change waiting to be written. Changes are queued as they are made, often with a ballot's lock held, so they are
+     * only encoded once the writer takes them.
+     */
+    private static final class Record {
+        private final byte type;
+        private final Writer writer;
+        private byte[] encoded;
+
+        private Record(final byte type, final Writer writer) {
+            this.type = type;
+            this.writer = writer;
+        }
+
+        private byte[] encode() {
+            if (this.encoded == null) {
+                this.encoded = VoteJournal.encode(this.type, this.writer);
+            }
+
+            return this.encoded;
+        }
+    }
+
+}
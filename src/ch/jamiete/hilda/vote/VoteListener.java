@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.MessageReaction;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.events.channel.text.TextChannelDeleteEvent;
+import net.dv8tion.jda.api.events.channel.text.update.TextChannelUpdatePermissionsEvent;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberLeaveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.dv8tion.jda.api.events.guild.member.update.GuildMemberUpdateNicknameEvent;
+import net.dv8tion.jda.api.events.message.guild.react.GuildMessageReactionAddEvent;
+import net.dv8tion.jda.api.events.message.guild.react.GuildMessageReactionRemoveEvent;
+import net.dv8tion.jda.api.events.role.update.RoleUpdatePermissionsEvent;
+import net.dv8tion.jda.api.events.user.update.UserUpdateNameEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import ch.jamiete.hilda.Hilda;
+import ch.jamiete.hilda.commands.CommandManager;
+
+/**
+ * Keeps each vote's count of members yet to vote up to date as members come and go, keeps the cached display names
+ * used in results current and queues reactions on vote messages as ballots. Each vote's handle on its channel is
+ * refreshed when the channel changes and forgotten when it is deleted. Reactions on paginated vote lists turn their
+ * page. With {@code -Dhilda.vote.remind=true}, members who join are told how many open votes they have yet to respond
+ * to.
+ * <p>
+ * Anything that goes through a guild's or channel's votes may validate them or end them, so it is queued on the
+ * plugin's executor rather than run on the gateway thread. The queue runs one task at a time, in the order the events
+ * arrived, so a member who joins and quickly leaves is never left counted.
+ */
+public class VoteListener extends ListenerAdapter {
+    /**
+     * Whether members who join a guild are sent a message counting the open votes they can respond to.
+     */
+    public static final boolean REMIND = Boolean.getBoolean("hilda.vote.remind");
+
+    private final VotePlugin plugin;
+
+    /**
+     * The last task queued. See {@link #queue(Runnable)}.
+     */
+    private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+    public VoteListener(final VotePlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    private void change(final Guild guild, final Member member, final boolean joined) {
+        for (final Vote vote : this.plugin.getGuildVotes(guild.getIdLong())) {
+            final TextChannel channel = vote.getChannel();
+
+            // A member who leaves is dropped from whichever votes they were eligible for
+            if (!joined || channel != null && member.hasPermission(channel, Permission.MESSAGE_READ)) {
+                vote.onMemberChange(member, joined);
+
+                if (!joined) {
+                    vote.check();
+                }
+            }
+        }
+    }
+
+    private void react(final TextChannel channel, final long message, final long user, final MessageReaction.ReactionEmote emote, final boolean added) {
+        if (!emote.isEmoji() || this.plugin.getListings().turn(channel, message, user, emote.getEmoji())) {
+            return;
+        }
+
+        if (!VoteReactions.ENABLED || this.plugin.getVoteByMessage(message) == null) {
+            return;
+        }
+
+        this.plugin.getReactions().offer(message, user, emote.getEmoji(), added);
+    }
+
+    /**
+     * Runs a task on the plugin's executor once every task queued before it has finished.
+     * @param task The task
+     */
+    private synchronized void queue(final Runnable task) {
+        this.tail = this.tail.thenRunAsync(task, this.plugin.getHilda().getExecutor()).exceptionally(e -> {
+            Hilda.getLogger().log(Level.WARNING, "Failed to handle a change to a guild with open votes", e);
+            return null;
+        });
+    }
+
+    private void recount(final Guild guild) {
+        for (final Vote vote : this.plugin.getGuildVotes(guild.getIdLong())) {
+            this.plugin.recount(vote);
+        }
+    }
+
+    private void remind(final Member member) {
+        final int pending = this.plugin.countPendingVotes(member);
+
+        if (pending == 0) {
+            return;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("There ").append(pending == 1 ? "is " : "are ").append(pending).append(pending == 1 ? " vote" : " votes");
+        sb.append(" open on ").append(member.getGuild().getName()).append(" that you haven't responded to yet. ");
+        sb.append("Use ").append(CommandManager.PREFIX).append("v open in a channel to see them.");
+
+        member.getUser().openPrivateChannel().queue(channel -> channel.sendMessage(sb.toString()).queue());
+    }
+
+    @Override
+    public void onGuildLeave(final GuildLeaveEvent event) {
+        this.queue(() -> {
+            for (final Vote vote : this.plugin.getGuildVotes(event.getGuild().getIdLong())) {
+                vote.setChannel(null);
+            }
+        });
+    }
+
+    @Override
+    public void onGuildMemberJoin(final GuildMemberJoinEvent event) {
+        this.queue(() -> {
+            this.change(event.getGuild(), event.getMember(), true);
+
+            if (VoteListener.REMIND && !event.getUser().isBot()) {
+                this.remind(event.getMember());
+            }
+        });
+    }
+
+    @Override
+    public void onGuildMemberLeave(final GuildMemberLeaveEvent event) {
+        this.plugin.getRenderer().invalidate(event.getGuild(), event.getUser().getIdLong());
+        this.queue(() -> this.change(event.getGuild(), event.getMember(), false));
+    }
+
+    @Override
+    public void onGuildMemberUpdateNickname(final GuildMemberUpdateNicknameEvent event) {
+        this.plugin.getRenderer().invalidate(event.getGuild(), event.getUser().getIdLong());
+    }
+
+    @Override
+    public void onGuildMessageReactionAdd(final GuildMessageReactionAddEvent event) {
+        if (!event.getUser().isBot()) {
+            this.react(event.getChannel(), event.getMessageIdLong(), event.getUserIdLong(), event.getReactionEmote(), true);
+        }
+    }
+
+    @Override
+    public void onGuildMessageReactionRemove(final GuildMessageReactionRemoveEvent event) {
+        // The user may not be cached, but the bot never removes reactions it did not add
+        if (event.getUserIdLong() != event.getJDA().getSelfUser().getIdLong()) {
+            this.react(event.getChannel(), event.getMessageIdLong(), event.getUserIdLong(), event.getReactionEmote(), false);
+        }
+    }
+
+    @Override
+    public void onGuildMemberRoleAdd(final GuildMemberRoleAddEvent event) {
+        this.queue(() -> this.recount(event.getGuild()));
+    }
+
+    @Override
+    public void onGuildMemberRoleRemove(final GuildMemberRoleRemoveEvent event) {
+        this.queue(() -> this.recount(event.getGuild()));
+    }
+
+    @Override
+    public void onRoleUpdatePermissions(final RoleUpdatePermissionsEvent event) {
+        this.queue(() -> this.recount(event.getGuild()));
+    }
+
+    @Override
+    public void onTextChannelDelete(final TextChannelDeleteEvent event) {
+        this.plugin.getListings().invalidate(event.getChannel());
+
+        this.queue(() -> {
+            for (final Vote vote : this.plugin.getChannelVotes(event.getChannel().getIdLong())) {
+                vote.setChannel(null);
+            }
+        });
+    }
+
+    @Override
+    public void onTextChannelUpdatePermissions(final TextChannelUpdatePermissionsEvent event) {
+        this.queue(() -> {
+            for (final Vote vote : this.plugin.getChannelVotes(event.getChannel().getIdLong())) {
+                vote.setChannel(event.getChannel());
+                this.plugin.recount(vote);
+            }
+        });
+    }
+
+    @Override
+    public void onUserUpdateName(final UserUpdateNameEvent event) {
+        this.plugin.getRenderer().invalidate(event.getUser().getIdLong());
+    }
+
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import net.dv8tion.jda.api.entities.MessageChannel;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.TextChannel;
+
+/**
+ * Builds the paginated lists of open votes in a channel or guild.
+ * <p>
+ * Each list is taken from the registry's sorted view of the channel or guild and kept until a vote in it changes.
+ * Pages are only rendered when someone asks for them, so a guild with hundreds of votes open costs one page rather than
+ * an embed too large to send.
+ * <p>
+ * Lists with more than one page are posted with reactions that turn the page. Only the member who asked for the list
+ * can turn it, and adding or removing either reaction counts, so the bot never needs to remove reactions itself.
+ */
+public class VoteListings {
+    /**
+     * The number of votes on each page, well under the 25 fields an embed may hold.
+     */
+    public static final int PAGE_SIZE = 10;
+
+    public static final String PREVIOUS = "\u25C0"; // black left-pointing triangle
+    public static final String NEXT = "\u25B6"; // black right-pointing triangle
+
+    private static final int TRACKED = 1000;
+
+    /**
+     * The votes in one channel or guild as they were when the list was taken, with the pages rendered so far.
+     */
+    private static final class Listing {
+        private final Vote[] votes;
+        private final MessageEmbed[] pages;
+
+        private Listing(final Vote[] votes) {
+            this.votes = votes;
+            this.pages = new MessageEmbed[Math.max(1, (votes.length + VoteListings.PAGE_SIZE - 1) / VoteListings.PAGE_SIZE)];
+        }
+    }
+
+    /**
+     * A posted list that can still be turned.
+     */
+    private static final class Posted {
+        private final long scope;
+        private final boolean guild;
+        private final long user;
+        private int page;
+
+        private Posted(final long scope, final boolean guild, final long user, final int page) {
+            this.scope = scope;
+            this.guild = guild;
+            this.user = user;
+            this.page = page;
+        }
+    }
+
+    private final VotePlugin plugin;
+    private final VoteRegistry registry;
+
+    /**
+     * The lists taken so far, by the snowflake of their channel or guild. Channel and guild snowflakes never clash.
+     */
+    private final ConcurrentHashMap<Long, Listing> listings = new ConcurrentHashMap<>();
+
+    private final Map<Long, Posted> posted = new LinkedHashMap<Long, Posted>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, Posted> eldest) {
+            return this.size() > VoteListings.TRACKED;
+        }
+    };
+
+    public VoteListings(final VotePlugin plugin, final VoteRegistry registry) {
+        this.plugin = plugin;
+        this.registry = registry;
+    }
+
+    private Listing getListing(final long scope, final boolean guild) {
+        // Taking the list inside the map's lock means an invalidation can never be overwritten by an older list. The
+        // registry is read directly as validating a vote may invalidate lists, which cannot happen inside the lock.
+        return this.listings.computeIfAbsent(scope, key -> {
+            final Vote[] votes = (guild ? this.registry.getGuildVotes(key) : this.registry.getChannelVotes(key)).toArray(new Vote[0]);
+            return new Listing(votes);
+        });
+    }
+
+    private MessageEmbed getPage(final Listing listing, final int page, final boolean guild) {
+        synchronized (listing) {
+            if (listing.pages[page] == null) {
+                listing.pages[page] = this.plugin.getRenderer().renderList(listing.votes, page, VoteListings.PAGE_SIZE, guild);
+            }
+
+            return listing.pages[page];
+        }
+    }
+
+    /**
+     * Forgets the lists a vote appears in. Called whenever a vote is added, removed or receives a ballot.
+     * @param vote The vote
+     */
+    public void invalidate(final Vote vote) {
+        this.listings.remove(vote.getChannelIdLong());
+        this.listings.remove(vote.getGuildIdLong());
+    }
+
+    /**
+     * Forgets every list in a channel and in its guild.
+     * @param channel The channel
+     */
+    public void invalidate(final TextChannel channel) {
+        this.listings.remove(channel.getIdLong());
+        this.listings.remove(channel.getGuild().getIdLong());
+    }
+
+    /**
+     * Posts a page of the open votes.
+     * @param channel The channel to post in
+     * @param scope The snowflake of the channel or guild to list
+     * @param guild Whether the scope is a guild
+     * @param user The snowflake of the user who asked for the list, who alone may turn its pages
+     * @param page The page to post, counting from one; pages past the end show the last page
+     */
+    public void post(final MessageChannel channel, final long scope, final boolean guild, final long user, final int page) {
+        final Listing listing = this.getListing(scope, guild);
+        final int index = Math.max(0, Math.min(page, listing.pages.length) - 1);
+
+        channel.sendMessage(this.getPage(listing, index, guild)).queue(sent -> {
+            if (listing.pages.length < 2) {
+                return;
+            }
+
+            synchronized (this.posted) {
+                this.posted.put(sent.getIdLong(), new Posted(scope, guild, user, index));
+            }
+
+            sent.addReaction(VoteListings.PREVIOUS).queue();
+            sent.addReaction(VoteListings.NEXT).queue();
+        });
+    }
+
+    /**
+     * Turns the page of a posted list in response to a reaction.
+     * @param channel The channel the list was posted in
+     * @param message The snowflake of the message
+     * @param user The snowflake of the user who reacted
+     * @param emoji The emoji reacted with
+     * @return Whether the message is a list posted by this plugin
+     */
+    public boolean turn(final MessageChannel channel, final long message, final long user, final String emoji) {
+        final int direction = VoteListings.PREVIOUS.equals(emoji) ? -1 : VoteListings.NEXT.equals(emoji) ? 1 : 0;
+        final Posted posted;
+
+        synchronized (this.posted) {
+            posted = this.posted.get(message);
+        }
+
+        if (posted == null) {
+            return false;
+        }
+
+        if (direction == 0 || posted.user != user) {
+            return true;
+        }
+
+        final Listing listing = this.getListing(posted.scope, posted.guild);
+        final int page;
+
+        synchronized (posted) {
+            page = Math.max(0, Math.min(posted.page + direction, listing.pages.length - 1));
+
+            if (page == posted.page) {
+                return true;
+            }
+
+            posted.page = page;
+        }
+
+        channel.editMessageById(message, this.getPage(listing, page, posted.guild)).queue(null, failure -> {
+            synchronized (this.posted) {
+                this.posted.remove(message);
+            }
+        });
+
+        return true;
+    }
+
+}
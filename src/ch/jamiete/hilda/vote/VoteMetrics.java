@@ -0,0 +1,397 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Instruments the plugin. Recording never allocates: counters are striped {@link LongAdder}s and timings go into
+ * histograms with a fixed set of buckets. Everything is published over JMX under {@value #DOMAIN} and summarised by
+ * {@code v stats}.
+ */
+public class VoteMetrics implements VoteMetricsMBean {
+    public static final String DOMAIN = "ch.jamiete.hilda.vote";
+
+    /**
+     * The subcommands timed, in the order they are reported.
+     */
+    public static final String[] COMMANDS = { "start", "register", "list", "open", "serverlist", "close", "delete", "history", "stats" };
+
+    public interface HistogramMBean {
+
+        long getCount();
+
+        double getMaxMillis();
+
+        double getMeanMillis();
+
+        double get50thPercentileMillis();
+
+        double get99thPercentileMillis();
+
+    }
+
+    /**
+     * Counts durations in buckets that double in width, from under a nanosecond up to several minutes. Percentiles are
+     * reported as the upper bound of the bucket they fall in, so they are accurate to within a factor of two.
+     */
+    public static final class Histogram implements HistogramMBean {
+        private static final int BUCKETS = 40;
+
+        private final LongAdder[] buckets = new LongAdder[Histogram.BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        private Histogram() {
+            for (int i = 0; i < this.buckets.length; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        @Override
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return this.max.get() / 1e6;
+        }
+
+        @Override
+        public double getMeanMillis() {
+            final long count = this.count.sum();
+            return count == 0 ? 0 : this.sum.sum() / 1e6 / count;
+        }
+
+        @Override
+        public double get50thPercentileMillis() {
+            return this.getPercentile(0.5) / 1e6;
+        }
+
+        @Override
+        public double get99thPercentileMillis() {
+            return this.getPercentile(0.99) / 1e6;
+        }
+
+        /**
+         * Estimates a percentile of the durations recorded.
+         * @param percentile The percentile between 0 and 1
+         * @return The duration in nanoseconds
+         */
+        public long getPercentile(final double percentile) {
+            final long[] counts = new long[this.buckets.length];
+            long total = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = this.buckets[i].sum();
+                total += counts[i];
+            }
+
+            if (total == 0) {
+                return 0;
+            }
+
+            final long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+
+                if (seen >= rank) {
+                    return Math.min(1L << i + 1, this.max.get());
+                }
+            }
+
+            return this.max.get();
+        }
+
+        /**
+         * Records a duration.
+         * @param nanos The duration in nanoseconds
+         */
+        public void record(final long nanos) {
+            final int bucket = nanos <= 0 ? 0 : Math.min(63 - Long.numberOfLeadingZeros(nanos), Histogram.BUCKETS - 1);
+
+            this.buckets[bucket].increment();
+            this.count.increment();
+            this.sum.add(nanos);
+            this.max.accumulate(nanos);
+        }
+
+        /**
+         * Records the time elapsed since an operation started.
+         * @param start The value of {@link System#nanoTime()} when the operation started
+         */
+        public void since(final long start) {
+            this.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts events in total and over the last minute, one slot per second. Each slot packs the second it counts into
+     * its high bits and the count into its low {@value #COUNT_BITS}, so a slot rolls over to a new second and resets
+     * its count in a single compare-and-set.
+     */
+    public static final class Meter {
+        private static final int WINDOW = 60;
+        private static final int COUNT_BITS = 24;
+        private static final long COUNT_MASK = (1L << Meter.COUNT_BITS) - 1;
+
+        private final LongAdder count = new LongAdder();
+        private final AtomicLongArray slots = new AtomicLongArray(Meter.WINDOW);
+
+        private Meter() {
+            // Created by the metrics
+        }
+
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        /**
+         * Gets the average rate over the last minute, not counting the second in progress.
+         * @return The events per second
+         */
+        public double getRate() {
+            final long now = System.currentTimeMillis() / 1000;
+            long total = 0;
+
+            for (int i = 0; i < Meter.WINDOW; i++) {
+                final long slot = this.slots.get(i);
+                final long second = slot >>> Meter.COUNT_BITS;
+
+                if (second < now && second >= now - Meter.WINDOW) {
+                    total += slot & Meter.COUNT_MASK;
+                }
+            }
+
+            return (double) total / Meter.WINDOW;
+        }
+
+        public void mark() {
+            final long second = System.currentTimeMillis() / 1000;
+            final int index = (int) (second % Meter.WINDOW);
+
+            this.count.increment();
+
+            while (true) {
+                final long slot = this.slots.get(index);
+                final long next;
+
+                if (slot >>> Meter.COUNT_BITS == second) {
+                    // A full slot stops counting rather than carrying into the second
+                    if ((slot & Meter.COUNT_MASK) == Meter.COUNT_MASK) {
+                        return;
+                    }
+
+                    next = slot + 1;
+                } else {
+                    // The first event in a new second replaces the count left over from a minute ago
+                    next = second << Meter.COUNT_BITS | 1;
+                }
+
+                if (this.slots.compareAndSet(index, slot, next)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private final VotePlugin plugin;
+    private final Map<String, Histogram> commands = new LinkedHashMap<>();
+    private final Histogram check = new Histogram();
+    private final Histogram finish = new Histogram();
+    private final Histogram save = new Histogram();
+    private final Meter registrations = new Meter();
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    public VoteMetrics(final VotePlugin plugin) {
+        this.plugin = plugin;
+
+        for (final String command : VoteMetrics.COMMANDS) {
+            this.commands.put(command, new Histogram());
+        }
+    }
+
+    @Override
+    public int countGuildVotes(final long guild_id) {
+        return this.plugin.getGuildVoteCount(guild_id);
+    }
+
+    @Override
+    public int getActiveVotes() {
+        return this.plugin.getVoteCount();
+    }
+
+    /**
+     * Gets the timings of {@link Vote#check()}.
+     * @return The histogram
+     */
+    public Histogram getCheck() {
+        return this.check;
+    }
+
+    @Override
+    public long getCheckpointDurationMillis() {
+        long duration = -1;
+
+        for (final VotePartition partition : this.plugin.getPartitions()) {
+            duration = Math.max(duration, partition.getStore().getLastSaveDuration());
+        }
+
+        return duration;
+    }
+
+    @Override
+    public long getCheckpointSizeBytes() {
+        long size = -1;
+
+        for (final VotePartition partition : this.plugin.getPartitions()) {
+            final long last = partition.getStore().getLastSaveSize();
+
+            if (last >= 0) {
+                size = Math.max(size, 0) + last;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Gets the timings of a subcommand.
+     * @param name The name of the subcommand
+     * @return The histogram or null if the subcommand is not timed
+     */
+    public Histogram getCommand(final String name) {
+        return this.commands.get(name);
+    }
+
+    /**
+     * Gets the timings of every subcommand.
+     * @return An unmodifiable map of subcommand names to histograms, in the order of {@link #COMMANDS}
+     */
+    public Map<String, Histogram> getCommands() {
+        return Collections.unmodifiableMap(this.commands);
+    }
+
+    /**
+     * Gets the timings of {@link Vote#finish()}.
+     * @return The histogram
+     */
+    public Histogram getFinish() {
+        return this.finish;
+    }
+
+    @Override
+    public int getGuildsWithVotes() {
+        return this.plugin.getGuildCount();
+    }
+
+    @Override
+    public long getRegistrations() {
+        return this.registrations.getCount();
+    }
+
+    /**
+     * Gets the meter marked for every ballot registered.
+     * @return The meter
+     */
+    public Meter getRegistrationMeter() {
+        return this.registrations;
+    }
+
+    @Override
+    public double getRegistrationsPerSecond() {
+        return this.registrations.getRate();
+    }
+
+    /**
+     * Gets the timings of checkpoints.
+     * @return The histogram
+     */
+    public Histogram getSave() {
+        return this.save;
+    }
+
+    @Override
+    public int getTimerBacklog() {
+        final VoteTimer timer = this.plugin.getTimer();
+        return timer == null ? 0 : timer.getPending();
+    }
+
+    private void register(final MBeanServer server, final Object bean, final String properties) throws Exception {
+        final ObjectName name = new ObjectName(VoteMetrics.DOMAIN + ":" + properties);
+
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+
+        server.registerMBean(bean, name);
+        this.registered.add(name);
+    }
+
+    /**
+     * Publishes the metrics to the platform MBean server.
+     */
+    public void start() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            this.register(server, this, "type=Votes");
+            this.register(server, this.check, "type=Timing,name=check");
+            this.register(server, this.finish, "type=Timing,name=finish");
+            this.register(server, this.save, "type=Timing,name=save");
+
+            for (final Map.Entry<String, Histogram> entry : this.commands.entrySet()) {
+                this.register(server, entry.getValue(), "type=Command,name=" + entry.getKey());
+            }
+        } catch (final Exception e) {
+            Hilda.getLogger().log(Level.WARNING, "Failed to publish vote metrics over JMX", e);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     */
+    public void stop() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        for (final ObjectName name : this.registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (final Exception e) {
+                // Already gone
+            }
+        }
+
+        this.registered.clear();
+    }
+
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+/**
+ * The plugin-wide figures published over JMX. Timings for each operation are published separately as
+ * {@link VoteMetrics.HistogramMBean}s.
+ */
+public interface VoteMetricsMBean {
+
+    /**
+     * Counts the votes open in a guild.
+     * @param guild_id The snowflake of the guild
+     * @return The number of votes
+     */
+    int countGuildVotes(long guild_id);
+
+    int getActiveVotes();
+
+    long getCheckpointDurationMillis();
+
+    long getCheckpointSizeBytes();
+
+    int getGuildsWithVotes();
+
+    long getRegistrations();
+
+    double getRegistrationsPerSecond();
+
+    int getTimerBacklog();
+
+}
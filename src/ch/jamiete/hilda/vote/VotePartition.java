@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * The votes of one shard together with the store they are saved in and the archive of those that have finished.
+ * <p>
+ * When sharding is off there is a single partition kept directly in {@link VotePlugin#FOLDER}, just as before shards
+ * existed. Otherwise each shard is kept in its own folder beneath it, so that whichever process owns a shard can load
+ * it without reading anyone else's votes.
+ */
+public class VotePartition {
+    /**
+     * The kind of store votes are saved in, which can be changed with {@code -Dhilda.vote.store}.
+     */
+    public static final String STORE = System.getProperty("hilda.vote.store", "file");
+
+    private final VotePlugin plugin;
+    private final int shard;
+    private final File folder;
+    private final VoteStore store;
+    private final VoteArchive archive;
+
+    /**
+     * The votes the partition held when it was released, which it keeps saving until it is closed.
+     */
+    private volatile Collection<Vote> released;
+
+    public VotePartition(final VotePlugin plugin, final int shard) {
+        this.plugin = plugin;
+        this.shard = shard;
+        this.folder = VoteShards.isEnabled() ? new File(VotePlugin.FOLDER, "shard-" + shard) : VotePlugin.FOLDER;
+
+        this.archive = new VoteArchive(new File(this.folder, "archive"), VoteShards.isEnabled() ? "vote-archive-" + shard : "vote-archive");
+
+        switch (VotePartition.STORE) {
+            case "database":
+                this.store = new DatabaseVoteStore(plugin, this);
+                break;
+
+            case "memory":
+                this.store = new MemoryVoteStore(this);
+                break;
+
+            default:
+                this.store = new FileVoteStore(plugin, this);
+                break;
+        }
+    }
+
+    /**
+     * Fixes the votes the partition saves from now on, once they have been taken out of the plugin's registry.
+     * @param votes The votes
+     */
+    void release(final Collection<Vote> votes) {
+        this.released = Collections.unmodifiableList(new ArrayList<>(votes));
+    }
+
+    /**
+     * Saves anything outstanding and closes the store and archive.
+     */
+    public void close() {
+        this.store.shutdown();
+        this.archive.close();
+    }
+
+    /**
+     * Gets the archive of the partition's finished votes.
+     * @return The archive
+     */
+    public VoteArchive getArchive() {
+        return this.archive;
+    }
+
+    /**
+     * Gets the folder the partition is saved in.
+     * @return The folder
+     */
+    public File getFolder() {
+        return this.folder;
+    }
+
+    /**
+     * Gets the shard the partition holds.
+     * @return The shard, which is always 0 when sharding is off
+     */
+    public int getShard() {
+        return this.shard;
+    }
+
+    /**
+     * Gets the store the partition's votes are saved in.
+     * @return The store
+     */
+    public VoteStore getStore() {
+        return this.store;
+    }
+
+    /**
+     * Gets the open votes that belong to the partition.
+     * @return The votes
+     */
+    public Collection<Vote> getVotes() {
+        final Collection<Vote> released = this.released;
+
+        if (released != null) {
+            return released;
+        }
+
+        if (!VoteShards.isEnabled()) {
+            return this.plugin.getAllVotes();
+        }
+
+        return this.plugin.getAllVotes().stream().filter(vote -> VoteShards.getShard(vote.getGuildIdLong()) == this.shard).collect(Collectors.toList());
+    }
+
+    /**
+     * Checks whether the partition has been released, after which it takes no new votes.
+     * @return Whether the partition has been released
+     */
+    public boolean isReleased() {
+        return this.released != null;
+    }
+
+    /**
+     * Reads the votes saved for the partition and gets its store and archive ready to record changes.
+     * @return The votes, keyed by lower case ID
+     */
+    public LinkedHashMap<String, Vote> load() {
+        try {
+            this.archive.open();
+        } catch (final IOException e) {
+            Hilda.getLogger().log(Level.SEVERE, "Failed to open the vote archive in " + this.folder + "; finished votes will not be archived", e);
+        }
+
+        return this.store.load();
+    }
+
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes the open votes each member of a guild can see and has yet to respond to, so that they can be listed or
+ * counted without going through every vote in the guild.
+ * <p>
+ * Each vote keeps the index up to date as its pending members change: when an eligible member casts or withdraws a
+ * ballot, when members join or leave the channel, when the members are counted and when the vote ends or is released. A vote only does so while holding its lock, so the index always agrees with its count of members yet
+ * to vote. Votes that have not been counted yet are not indexed.
+ * <p>
+ * All operations are safe to call from any thread.
+ */
+public class VotePendingIndex {
+    /**
+     * The IDs of the votes each member is yet to respond to, by guild and then by member. A member's set is dropped
+     * once it is empty.
+     */
+    private final ConcurrentHashMap<Long, ConcurrentHashMap<Long, Set<String>>> guilds = new ConcurrentHashMap<>();
+
+    /**
+     * Records that a member is yet to respond to a vote.
+     * @param guild_id The snowflake of the guild
+     * @param user The snowflake of the member
+     * @param id The ID of the vote
+     */
+    public void add(final long guild_id, final long user, final String id) {
+        this.guilds.computeIfAbsent(guild_id, key -> new ConcurrentHashMap<>()).compute(user, (key, votes) -> {
+            final Set<String> result = votes == null ? ConcurrentHashMap.newKeySet() : votes;
+            result.add(id);
+            return result;
+        });
+    }
+
+    /**
+     * Gets the IDs of the open votes a member is yet to respond to.
+     * @param guild_id The snowflake of the guild
+     * @param user The snowflake of the member
+     * @return An unmodifiable view of the IDs
+     */
+    public Set<String> get(final long guild_id, final long user) {
+        final ConcurrentHashMap<Long, Set<String>> members = this.guilds.get(guild_id);
+
+        if (members == null) {
+            return Collections.emptySet();
+        }
+
+        final Set<String> votes = members.get(user);
+        return votes == null ? Collections.emptySet() : Collections.unmodifiableSet(votes);
+    }
+
+    /**
+     * Records that a member is no longer waiting on a vote, because they have responded or can no longer see it.
+     * @param guild_id The snowflake of the guild
+     * @param user The snowflake of the member
+     * @param id The ID of the vote
+     */
+    public void remove(final long guild_id, final long user, final String id) {
+        final ConcurrentHashMap<Long, Set<String>> members = this.guilds.get(guild_id);
+
+        if (members != null) {
+            members.computeIfPresent(user, (key, votes) -> votes.remove(id) && votes.isEmpty() ? null : votes);
+        }
+    }
+
+    /**
+     * Removes a vote from every member of its guild, before it is counted again or once it has ended.
+     * @param guild_id The snowflake of the guild
+     * @param id The ID of the vote
+     */
+    public void remove(final long guild_id, final String id) {
+        final ConcurrentHashMap<Long, Set<String>> members = this.guilds.get(guild_id);
+
+        if (members == null) {
+            return;
+        }
+
+        for (final Long user : members.keySet()) {
+            this.remove(guild_id, user, id);
+        }
+    }
+
+}
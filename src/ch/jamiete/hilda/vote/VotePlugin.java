@@ -16,61 +16,410 @@
 package ch.jamiete.hilda.vote;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Random;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
+import java.util.stream.Collectors;
 import ch.jamiete.hilda.Hilda;
 import ch.jamiete.hilda.plugins.HildaPlugin;
 import ch.jamiete.hilda.vote.commands.VoteBaseCommand;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.TextChannel;
 
 public class VotePlugin extends HildaPlugin {
     public static final long MAXIMUM_LENGTH = 129600000; // 36 hours
+    public static final long RECOUNT_DELAY = 5000; // 5 seconds
 
-    private final ArrayList<Vote> votes = new ArrayList<>();
+    /**
+     * The folder votes are saved in, which can be changed with {@code -Dhilda.vote.data}.
+     */
+    public static final File FOLDER = new File(System.getProperty("hilda.vote.data", "data"));
+
+    private final VoteRegistry votes = new VoteRegistry();
+    private final VotePendingIndex pending = new VotePendingIndex();
+    private final VoteListings listings = new VoteListings(this, this.votes);
+    private final VoteAcknowledger acknowledger = new VoteAcknowledger(this);
+    private final VoteIdAllocator ids = new VoteIdAllocator();
+    private final VoteMetrics metrics = new VoteMetrics(this);
+    private final VoteReactions reactions = new VoteReactions(this);
+    private final VoteTally tally = new VoteTally(this);
+    private final VoteRenderer renderer = new VoteRenderer();
+    private final Map<Integer, VotePartition> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * Held to add a vote, and exclusively while a shard's votes are gathered up to be released. See
+     * {@link #release(int)}.
+     */
+    private final ReadWriteLock ownership = new ReentrantReadWriteLock();
+    private VoteListener listener;
+    private VoteShards shards;
+    private VoteTimer timer;
 
     public VotePlugin(final Hilda hilda) {
         super(hilda);
     }
 
     /**
-     * Adds a vote to the manager.
+     * Loads the votes of a shard and starts managing them. Called once this process owns the shard.
+     * @param shard The shard
+     */
+    void acquire(final int shard) {
+        final VotePartition partition = new VotePartition(this, shard);
+        final String from = VoteShards.isEnabled() ? " for shard " + shard : " from disk";
+        final ArrayList<Vote> adopted = new ArrayList<>();
+        int expired = 0;
+        int rejected = 0;
+        int renamed = 0;
+
+        for (final Vote vote : partition.load().values()) {
+            vote.setHilda(this.getHilda());
+            vote.setPlugin(this);
+
+            final TextChannel channel = vote.getChannel();
+
+            if (channel == null) {
+                rejected++;
+                continue;
+            }
+
+            if (vote.getGuildIdLong() == 0) {
+                vote.setGuildId(channel.getGuild().getIdLong());
+            }
+
+            if (vote.getCommencement() == Long.MIN_VALUE) {
+                vote.setCommencement(System.currentTimeMillis());
+            }
+
+            if (System.currentTimeMillis() >= vote.getCommencement() + VotePlugin.MAXIMUM_LENGTH) {
+                expired++;
+            }
+
+            // IDs are only unique within the process that handed them out, so a vote from another shard may clash. The
+            // registry is checked first so that an ID is only reserved for a vote that goes on to use it.
+            if (this.votes.get(vote.getId()) != null || !this.ids.reserve(vote.getId())) {
+                final String id = this.ids.allocate();
+
+                Hilda.getLogger().info("Renamed vote " + vote.getId() + " to " + id + " as the ID was in use");
+                vote.setId(id);
+                this.tally.mark(vote);
+                renamed++;
+            }
+
+            this.votes.add(vote);
+            this.listings.invalidate(vote);
+            adopted.add(vote);
+        }
+
+        this.partitions.put(shard, partition);
+
+        // Expired votes are ended on the timer's first tick, which needs the partition in place
+        for (final Vote vote : adopted) {
+            this.schedule(vote);
+        }
+
+        Hilda.getLogger().info("Loaded " + adopted.size() + " votes" + from);
+
+        if (expired > 0) {
+            Hilda.getLogger().info("Loaded " + expired + " expired votes" + from + " which will be ended shortly");
+        }
+
+        if (rejected > 0) {
+            Hilda.getLogger().info("Loaded and rejected " + rejected + " malformed votes" + from);
+        }
+
+        if (renamed > 0) {
+            partition.getStore().save();
+        }
+
+        partition.getStore().begin();
+
+        ForkJoinPool.commonPool().execute(() -> {
+            final long start = System.nanoTime();
+
+            adopted.parallelStream().forEach(vote -> {
+                try {
+                    this.validate(vote);
+                } catch (final Exception e) {
+                    Hilda.getLogger().log(Level.WARNING, "Failed to validate vote " + vote.getId(), e);
+                }
+            });
+
+            Hilda.getLogger().fine("Validated " + adopted.size() + " votes in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        });
+    }
+
+    /**
+     * Adds a vote to the manager. If the vote cannot be saved its ID is released.
      * @param vote The vote to add
+     * @throws IllegalStateException if this process does not manage the votes of the vote's guild
      */
     public void addVote(final Vote vote) {
-        this.votes.add(vote);
+        this.ownership.readLock().lock();
+
+        try {
+            final VotePartition partition = this.getPartition(vote);
+
+            if (partition == null || partition.isReleased()) {
+                this.ids.release(vote.getId());
+                throw new IllegalStateException("Votes in guild " + vote.getGuildIdLong() + " are not managed by this process");
+            }
+
+            // Registered first so that a checkpoint which rotates the journal before the vote is journalled still saves it
+            this.votes.add(vote);
+            partition.getStore().start(vote);
+            this.schedule(vote);
+        } finally {
+            this.ownership.readLock().unlock();
+        }
+
+        this.changed(vote);
+    }
+
+    /**
+     * Records that a vote has changed so that it is included in the next checkpoint.
+     * @param vote The vote that changed
+     */
+    public void changed(final Vote vote) {
+        final VoteStore store = this.getStore(vote);
+
+        if (store != null) {
+            store.mark(vote);
+        }
+
+        this.tally.mark(vote);
+        this.listings.invalidate(vote);
+    }
+
+    /**
+     * Ends votes that have reached their deadline. Called by the timer with each batch of expired votes.
+     * @param expired The votes to end
+     */
+    private void expire(final List<Vote> expired) {
+        this.getHilda().getExecutor().execute(() -> {
+            for (final Vote vote : expired) {
+                // The shard may have been handed off since the vote expired
+                if (!this.owns(vote.getGuildIdLong())) {
+                    continue;
+                }
+
+                try {
+                    this.validate(vote);
+                    vote.finish();
+                } catch (final Exception e) {
+                    Hilda.getLogger().log(Level.SEVERE, "Failed to end vote " + vote.getId(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the acknowledger that confirms ballots.
+     * @return The acknowledger
+     */
+    public VoteAcknowledger getAcknowledger() {
+        return this.acknowledger;
     }
 
     /**
-     * Gets a unique ID that isn't currently registered.
+     * Gets the archive of the votes that have finished in a guild.
+     * @param guild_id The snowflake of the guild
+     * @return The archive or null if this process does not own the guild's votes
+     */
+    public VoteArchive getArchive(final long guild_id) {
+        final VotePartition partition = this.partitions.get(VoteShards.getShard(guild_id));
+        return partition == null ? null : partition.getArchive();
+    }
+
+    /**
+     * Gets every vote managed by the plugin.
+     * @return An unmodifiable view of the votes
+     */
+    public Collection<Vote> getAllVotes() {
+        return this.votes.getAll();
+    }
+
+    /**
+     * Allocates a unique ID that isn't currently registered. The ID is held until the vote using it is removed, so
+     * it must be used for a vote that is then added.
      * @return A unique ID
      */
     public String getFreshID() {
-        Hilda.getLogger().fine("Generating vote ID...");
+        return this.ids.allocate();
+    }
 
-        final String alphabet = "abcdefghijkmnpqrstuvwxyz";
-        final String numbers = "23456789";
-        final Random random = new Random();
+    /**
+     * Gets the allocator that hands out vote IDs.
+     * @return The allocator
+     */
+    public VoteIdAllocator getIdAllocator() {
+        return this.ids;
+    }
+
+    /**
+     * Counts the guilds with at least one vote open.
+     * @return The number of guilds
+     */
+    public int getGuildCount() {
+        return this.votes.getGuildCount();
+    }
+
+    /**
+     * Counts the votes open in a guild without validating them.
+     * @param guild_id The snowflake of the guild
+     * @return The number of votes
+     */
+    public int getGuildVoteCount(final long guild_id) {
+        return this.votes.getGuildVotes(guild_id).size();
+    }
+
+    /**
+     * Gets the paginated lists of open votes.
+     * @return The lists
+     */
+    public VoteListings getListings() {
+        return this.listings;
+    }
+
+    /**
+     * Gets the metrics that instrument the plugin.
+     * @return The metrics
+     */
+    public VoteMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Gets the partition a vote is saved in.
+     * @param vote The vote
+     * @return The partition or null if this process does not own the vote's shard
+     */
+    public VotePartition getPartition(final Vote vote) {
+        return this.partitions.get(VoteShards.getShard(vote.getGuildIdLong()));
+    }
+
+    /**
+     * Gets the partitions this process owns.
+     * @return An unmodifiable view of the partitions
+     */
+    public Collection<VotePartition> getPartitions() {
+        return Collections.unmodifiableCollection(this.partitions.values());
+    }
+
+    /**
+     * Counts the open votes in a guild that a member can see and has not responded to.
+     * @param member The member
+     * @return The number of votes
+     */
+    public int countPendingVotes(final Member member) {
+        return this.getPendingVotes(member.getGuild().getIdLong(), 0, member.getUser().getIdLong()).size();
+    }
+
+    /**
+     * Gets the index of the open votes each member has yet to respond to.
+     * @return The index
+     */
+    public VotePendingIndex getPendingIndex() {
+        return this.pending;
+    }
+
+    /**
+     * Gets the open votes a member can see and has not responded to. Votes are only indexed once they have been
+     * validated, so the channel's votes should be validated first.
+     * @param guild_id The snowflake of the guild
+     * @param channel_id The snowflake of the channel, or 0 for every channel in the guild
+     * @param user The snowflake of the member
+     * @return The votes, oldest first
+     */
+    public List<Vote> getPendingVotes(final long guild_id, final long channel_id, final long user) {
+        final ArrayList<Vote> pending = new ArrayList<>();
 
-        final String possibleid = String.valueOf(alphabet.charAt(random.nextInt(alphabet.length())) + numbers.charAt(random.nextInt(numbers.length())));
+        for (final String id : this.pending.get(guild_id, user)) {
+            final Vote vote = this.votes.get(id);
 
-        for (final Vote vote : this.votes) {
-            if (vote.getId().equals(possibleid)) {
-                return this.getFreshID();
+            if (vote != null && !vote.isClosed() && (channel_id == 0 || vote.getChannelIdLong() == channel_id)) {
+                pending.add(vote);
             }
         }
 
-        Hilda.getLogger().fine("Found an ID: " + possibleid);
+        pending.sort(Comparator.comparingLong(Vote::getCommencement));
+        return pending;
+    }
+
+    /**
+     * Gets the queue that turns reactions into ballots.
+     * @return The reactions
+     */
+    public VoteReactions getReactions() {
+        return this.reactions;
+    }
+
+    /**
+     * Gets the coordinator that shares the votes with other processes.
+     * @return The coordinator or null if sharding is off
+     */
+    public VoteShards getShards() {
+        return this.shards;
+    }
+
+    /**
+     * Gets the renderer that builds the results of votes.
+     * @return The renderer
+     */
+    public VoteRenderer getRenderer() {
+        return this.renderer;
+    }
 
-        return possibleid;
+    /**
+     * Gets the updater that keeps each vote's message showing its tally.
+     * @return The tally updater
+     */
+    public VoteTally getTally() {
+        return this.tally;
+    }
+
+    /**
+     * Gets the timer that ends votes when they reach their deadline.
+     * @return The timer
+     */
+    public VoteTimer getTimer() {
+        return this.timer;
+    }
+
+    /**
+     * Gets the store that saves a guild's votes.
+     * @param guild_id The snowflake of the guild
+     * @return The store or null if this process does not own the guild's shard
+     */
+    public VoteStore getStore(final long guild_id) {
+        final VotePartition partition = this.partitions.get(VoteShards.getShard(guild_id));
+        return partition == null ? null : partition.getStore();
+    }
+
+    /**
+     * Gets the store a vote is saved in.
+     * @param vote The vote
+     * @return The store or null if this process does not own the vote's shard
+     */
+    public VoteStore getStore(final Vote vote) {
+        final VotePartition partition = this.getPartition(vote);
+        return partition == null ? null : partition.getStore();
+    }
+
+    /**
+     * Gets the number of votes managed by the plugin.
+     * @return The number of votes
+     */
+    public int getVoteCount() {
+        return this.votes.size();
     }
 
     /**
@@ -79,99 +428,170 @@ public class VotePlugin extends HildaPlugin {
      * @return The vote with that ID or null if none exists
      */
     public Vote getVoteByID(final String id) {
-        return this.votes.stream().filter(v -> v.getId().equalsIgnoreCase(id)).findFirst().orElse(null);
+        final Vote vote = this.votes.get(id);
+
+        if (vote != null) {
+            this.validate(vote);
+        }
+
+        return vote;
+    }
+
+    /**
+     * Gets the vote posted in a message. The vote is not validated.
+     * @param message_id The snowflake of the message
+     * @return The vote or null if no vote was posted in that message
+     */
+    public Vote getVoteByMessage(final long message_id) {
+        return this.votes.getByMessage(message_id);
     }
 
     /**
-     * Gets a list of the votes managed by this command.
-     * @return A list of votes
+     * Gets the votes open in a channel.
+     * @param channel_id The snowflake of the channel
+     * @return An unmodifiable view of the votes, oldest first
      */
-    public List<Vote> getVotes() {
-        return Collections.unmodifiableList(this.votes);
+    public Collection<Vote> getChannelVotes(final long channel_id) {
+        final Collection<Vote> votes = this.votes.getChannelVotes(channel_id);
+        votes.forEach(this::validate);
+        return votes;
+    }
+
+    /**
+     * Gets the votes open in a guild.
+     * @param guild_id The snowflake of the guild
+     * @return An unmodifiable view of the votes, oldest first
+     */
+    public Collection<Vote> getGuildVotes(final long guild_id) {
+        final Collection<Vote> votes = this.votes.getGuildVotes(guild_id);
+        votes.forEach(this::validate);
+        return votes;
     }
 
     @Override
     public void onDisable() {
-        this.save();
+        if (this.listener != null) {
+            this.getHilda().getBot().removeEventListener(this.listener);
+            this.listener = null;
+        }
+
+        this.metrics.stop();
+        this.reactions.stop();
+        this.acknowledger.flush();
+        this.tally.stop();
+
+        if (this.timer != null) {
+            this.timer.stop();
+        }
+
+        if (this.shards != null) {
+            this.shards.stop();
+        }
+
+        for (final int shard : new ArrayList<>(this.partitions.keySet())) {
+            this.release(shard);
+        }
     }
 
     @Override
     public void onEnable() {
         this.getHilda().getCommandManager().registerChannelCommand(new VoteBaseCommand(this.getHilda(), this));
+        this.listener = new VoteListener(this);
+        this.getHilda().getBot().addEventListener(this.listener);
 
-        final File file = new File("data/votes.hilda");
+        this.timer = new VoteTimer(this::expire);
+        this.timer.start();
 
-        if (!file.exists()) {
-            Hilda.getLogger().info("No votes saved to disk");
-            return;
+        if (VoteShards.isEnabled()) {
+            // Shards are taken in the background once the other processes have been heard from
+            this.shards = new VoteShards(this);
+        } else {
+            this.acquire(0);
         }
 
-        final ArrayList<Vote> loaded = new ArrayList<>();
-        int ended = 0;
-        int rejected = 0;
+        this.reactions.start();
+        this.tally.start();
+        this.metrics.start();
 
-        try {
-            final FileInputStream stream = new FileInputStream(file);
-            final ObjectInputStream obj = new ObjectInputStream(stream);
+        if (this.shards != null) {
+            this.shards.start();
+        }
+    }
 
-            @SuppressWarnings("unchecked")
-            final ArrayList<Vote> list = (ArrayList<Vote>) obj.readObject();
+    /**
+     * Checks whether this process owns the votes of a guild.
+     * @param guild_id The snowflake of the guild
+     * @return Whether the guild's votes are managed here
+     */
+    public boolean owns(final long guild_id) {
+        return this.partitions.containsKey(VoteShards.getShard(guild_id));
+    }
 
-            if (list != null && !list.isEmpty()) {
-                loaded.addAll(list);
-            }
+    /**
+     * Schedules the members yet to vote on a vote to be counted again. Repeated requests before the recount runs are
+     * merged into one.
+     * @param vote The vote to recount
+     */
+    public void recount(final Vote vote) {
+        if (vote.requestRecount()) {
+            this.getHilda().getExecutor().schedule(vote::runRecount, VotePlugin.RECOUNT_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
 
-            obj.close();
-            stream.close();
+    /**
+     * Stops managing the votes of a shard, saving them first so that whichever process owns the shard next can load
+     * them. The votes are left open.
+     * @param shard The shard
+     */
+    void release(final int shard) {
+        final VotePartition partition = this.partitions.get(shard);
 
-            file.delete();
-        } catch (final Exception e) {
-            Hilda.getLogger().log(Level.SEVERE, "Failed to load votes from disk", e);
+        if (partition == null) {
+            return;
         }
 
-        for (final Vote vote : loaded) {
-            vote.setHilda(this.getHilda());
-            vote.setPlugin(this);
-
-            if (this.getHilda().getBot().getTextChannelById(vote.getChannelId()) == null) {
-                rejected++;
-                continue;
-            }
+        final ArrayList<Vote> released;
 
-            if (vote.getCommencement() == Long.MIN_VALUE) {
-                vote.setCommencement(System.currentTimeMillis());
-            }
+        // No vote can be added to the shard while its votes are gathered, and none is added once it is released
+        this.ownership.writeLock().lock();
 
-            for (final Entry<String, VoteResponse> response : vote.getResponses().entrySet()) {
-                if (this.getHilda().getBot().getUserById(response.getKey()) == null) {
-                    vote.getResponses().remove(response.getKey());
+        try {
+            // Without shards the partition sees every vote in the registry, which is emptied below
+            released = new ArrayList<>(partition.getVotes());
+            partition.release(released);
+
+            for (final Vote vote : released) {
+                if (this.votes.remove(vote)) {
+                    this.ids.release(vote.getId());
+                    this.listings.invalidate(vote);
                 }
             }
+        } finally {
+            this.ownership.writeLock().unlock();
+        }
 
-            if (System.currentTimeMillis() >= vote.getCommencement() + VotePlugin.MAXIMUM_LENGTH) {
-                vote.finish();
-                ended++;
-                continue;
-            } else {
-                final long remaining = vote.getCommencement() + VotePlugin.MAXIMUM_LENGTH - System.currentTimeMillis();
-                final ScheduledFuture<?> future = this.getHilda().getExecutor().schedule(new VoteTimer(vote), remaining, TimeUnit.MILLISECONDS);
-                vote.setFuture(future);
-            }
+        boolean finished = false;
 
-            this.votes.add(vote);
+        // Registrations already under way are let through and saved; any after this are refused
+        for (final Vote vote : released) {
+            if (vote.getTimeout() != null) {
+                vote.getTimeout().cancel();
+            }
 
-            vote.check();
+            if (!vote.release()) {
+                finished = true;
+            }
         }
 
-        Hilda.getLogger().info("Loaded " + this.votes.size() + " current votes from disk");
-
-        if (ended > 0) {
-            Hilda.getLogger().info("Loaded and ended " + ended + " expired votes from disk");
+        // A vote that finished while it was being gathered must not be saved again as open
+        if (finished) {
+            partition.release(released.stream().filter(vote -> !vote.isClosed()).collect(Collectors.toList()));
         }
 
-        if (rejected > 0) {
-            Hilda.getLogger().info("Loaded and rejected " + rejected + " malformed votes from disk");
-        }
+        partition.close();
+        this.partitions.remove(shard);
+
+        Hilda.getLogger().info("Saved and released " + released.size() + " votes" + (VoteShards.isEnabled() ? " for shard " + shard : ""));
     }
 
     /**
@@ -179,35 +599,91 @@ public class VotePlugin extends HildaPlugin {
      * @param vote The vote to remove
      */
     public void remove(final Vote vote) {
-        this.votes.remove(vote);
+        if (!this.votes.remove(vote)) {
+            return;
+        }
+
+        this.ids.release(vote.getId());
+
+        // No ballot is taken once the vote has gone, so none can put it back in the index
+        vote.release();
+
+        if (vote.getTimeout() != null) {
+            vote.getTimeout().cancel();
+        }
+
+        final VoteStore store = this.getStore(vote);
+
+        if (!vote.isClosed() && store != null) {
+            store.delete(vote);
+        }
+
+        this.changed(vote);
     }
 
-    @Override
-    public void save() {
-        final File folder = new File("data");
+    /**
+     * Schedules a vote to end once it reaches the maximum length.
+     * @param vote The vote to schedule
+     */
+    private void schedule(final Vote vote) {
+        vote.setTimeout(this.timer.schedule(vote, vote.getCommencement() + VotePlugin.MAXIMUM_LENGTH));
+    }
 
-        if (!folder.isDirectory()) {
-            folder.mkdir();
+    /**
+     * Brings a vote loaded from disk up to date with its guild: ballots from users the bot can no longer see are
+     * dropped, the members yet to vote are counted and the vote is ended if everyone has voted. Only the first call for
+     * each vote does any work; calls made while it runs wait for it, so every caller sees the vote validated. Once done
+     * this is cheap to call whenever a vote is accessed.
+     * @param vote The vote to validate
+     */
+    public void validate(final Vote vote) {
+        if (!vote.beginValidation()) {
+            vote.awaitValidation();
+            return;
         }
 
         try {
-            final File file = new File(folder, "votes.hilda");
-
-            if (!file.exists()) {
-                file.createNewFile();
+            for (final long user : vote.getBallots().users) {
+                if (this.getHilda().getBot().getUserById(user) == null) {
+                    try {
+                        vote.unregister(user);
+                    } catch (final IllegalStateException e) {
+                        // The vote has been handed to another process, which validates it itself
+                        return;
+                    }
+                }
             }
 
-            final FileOutputStream stream = new FileOutputStream("data/votes.hilda", false);
-            final ObjectOutputStream obj = new ObjectOutputStream(stream);
+            vote.countPending();
+            vote.check();
+        } finally {
+            vote.endValidation();
+        }
+    }
 
-            obj.writeObject(this.votes);
+    /**
+     * Sets the message posted when a vote opened.
+     * @param vote The vote
+     * @param message_id The snowflake of the message
+     */
+    public void setMessage(final Vote vote, final long message_id) {
+        if (!this.votes.setMessage(vote, message_id)) {
+            return;
+        }
+
+        final VoteStore store = this.getStore(vote);
 
-            Hilda.getLogger().fine("Saved " + this.votes.size() + " votes to disk");
+        if (store != null) {
+            store.message(vote);
+        }
 
-            obj.close();
-            stream.close();
-        } catch (final Exception e) {
-            Hilda.getLogger().log(Level.SEVERE, "Failed to save votes to disk", e);
+        this.changed(vote);
+    }
+
+    @Override
+    public void save() {
+        for (final VotePartition partition : this.partitions.values()) {
+            partition.getStore().save();
         }
     }
 
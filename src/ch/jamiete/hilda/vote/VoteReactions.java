@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Turns reactions on vote messages into ballots.
+ * <p>
+ * Reaction events only add to a queue. Once per tick the queue is drained on the executor and every reaction in it is
+ * applied in the order it arrived, after which each vote touched is checked once. A burst of reactions therefore costs
+ * one pass rather than one command, lookup, reply and check for every voter.
+ * <p>
+ * Reactions are only taken when the bot is started with {@code -Dhilda.vote.reactions=true}, in which case new votes
+ * are posted with a reaction for each response.
+ */
+public class VoteReactions {
+    public static final boolean ENABLED = Boolean.getBoolean("hilda.vote.reactions");
+    public static final long TICK = 500; // 0.5 seconds
+
+    public static final String YEA = "\u2705"; // heavy check mark
+    public static final String NAY = "\u274C"; // cross mark
+    public static final String ABSTAIN = "\u2796"; // heavy minus sign
+
+    private static final class Reaction {
+        private final long message;
+        private final long user;
+        private final VoteResponse response;
+        private final boolean added;
+
+        private Reaction(final long message, final long user, final VoteResponse response, final boolean added) {
+            this.message = message;
+            this.user = user;
+            this.response = response;
+            this.added = added;
+        }
+    }
+
+    private final VotePlugin plugin;
+    private final Queue<Reaction> queue = new ConcurrentLinkedQueue<>();
+    private ScheduledFuture<?> future;
+
+    public VoteReactions(final VotePlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Gets the emoji members react with to give a response.
+     * @param response The response
+     * @return The emoji
+     */
+    public static String getEmoji(final VoteResponse response) {
+        switch (response) {
+            case YEA:
+                return VoteReactions.YEA;
+
+            case NAY:
+                return VoteReactions.NAY;
+
+            default:
+                return VoteReactions.ABSTAIN;
+        }
+    }
+
+    /**
+     * Gets the response an emoji gives.
+     * @param emoji The emoji
+     * @return The response or null if the emoji does not give one
+     */
+    public static VoteResponse getResponse(final String emoji) {
+        if (VoteReactions.YEA.equals(emoji)) {
+            return VoteResponse.YEA;
+        }
+
+        if (VoteReactions.NAY.equals(emoji)) {
+            return VoteResponse.NAY;
+        }
+
+        if (VoteReactions.ABSTAIN.equals(emoji)) {
+            return VoteResponse.ABSTAIN;
+        }
+
+        return null;
+    }
+
+    /**
+     * Applies every reaction queued so far.
+     */
+    public void drain() {
+        final HashSet<Vote> touched = new HashSet<>();
+        Reaction reaction;
+
+        while ((reaction = this.queue.poll()) != null) {
+            final Vote vote = this.plugin.getVoteByMessage(reaction.message);
+
+            if (vote == null || vote.isClosed()) {
+                continue;
+            }
+
+            if (touched.add(vote)) {
+                this.plugin.validate(vote);
+            }
+
+            try {
+                if (reaction.added) {
+                    vote.register(reaction.user, reaction.response);
+                } else {
+                    // Taking back an earlier choice does not undo a later one
+                    vote.retract(reaction.user, reaction.response);
+                }
+            } catch (final IllegalStateException e) {
+                // The vote finished while the batch was being applied
+            }
+        }
+
+        for (final Vote vote : touched) {
+            vote.check();
+        }
+    }
+
+    /**
+     * Queues a reaction to be applied on the next tick. Reactions with emoji that do not give a response are ignored.
+     * @param message The snowflake of the message reacted to
+     * @param user The snowflake of the user reacting
+     * @param emoji The emoji
+     * @param added Whether the reaction was added, rather than removed
+     */
+    public void offer(final long message, final long user, final String emoji, final boolean added) {
+        final VoteResponse response = VoteReactions.getResponse(emoji);
+
+        if (response != null) {
+            this.queue.add(new Reaction(message, user, response, added));
+        }
+    }
+
+    /**
+     * Starts applying reactions on the executor.
+     */
+    public void start() {
+        this.future = this.plugin.getHilda().getExecutor().scheduleWithFixedDelay(() -> {
+            try {
+                this.drain();
+            } catch (final Exception e) {
+                Hilda.getLogger().log(Level.WARNING, "Failed to apply vote reactions", e);
+            }
+        }, VoteReactions.TICK, VoteReactions.TICK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops applying reactions in the background and applies any still queued.
+     */
+    public void stop() {
+        if (this.future != null) {
+            this.future.cancel(false);
+        }
+
+        this.drain();
+    }
+
+}
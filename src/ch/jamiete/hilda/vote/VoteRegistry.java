@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Indexes the open votes by ID, channel and guild. All operations are safe to call from any thread.
+ */
+public class VoteRegistry {
+    private static final Comparator<Vote> ORDER = Comparator.comparingLong(Vote::getCommencement).thenComparing(Vote::getId);
+
+    private final ConcurrentHashMap<String, Vote> votes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, NavigableSet<Vote>> channels = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, NavigableSet<Vote>> guilds = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Vote> messages = new ConcurrentHashMap<>();
+
+    private static String key(final String id) {
+        return id.toLowerCase();
+    }
+
+    private static void index(final ConcurrentHashMap<Long, NavigableSet<Vote>> index, final long key, final Vote vote) {
+        if (key == 0) {
+            return;
+        }
+
+        index.compute(key, (k, set) -> {
+            final NavigableSet<Vote> result = set == null ? new ConcurrentSkipListSet<>(VoteRegistry.ORDER) : set;
+            result.add(vote);
+            return result;
+        });
+    }
+
+    private static void unindex(final ConcurrentHashMap<Long, NavigableSet<Vote>> index, final long key, final Vote vote) {
+        if (key == 0) {
+            return;
+        }
+
+        index.computeIfPresent(key, (k, set) -> {
+            set.remove(vote);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private static Collection<Vote> view(final ConcurrentHashMap<Long, NavigableSet<Vote>> index, final long key) {
+        final NavigableSet<Vote> set = key == 0 ? null : index.get(key);
+        return set == null ? Collections.emptySet() : Collections.unmodifiableCollection(set);
+    }
+
+    /**
+     * Adds a vote to the registry.
+     * @param vote The vote to add
+     * @return Whether the vote was added, false if another vote already holds its ID
+     */
+    public boolean add(final Vote vote) {
+        if (this.votes.putIfAbsent(VoteRegistry.key(vote.getId()), vote) != null) {
+            return false;
+        }
+
+        VoteRegistry.index(this.channels, vote.getChannelIdLong(), vote);
+        VoteRegistry.index(this.guilds, vote.getGuildIdLong(), vote);
+
+        if (vote.getMessageId() != 0) {
+            this.messages.put(vote.getMessageId(), vote);
+        }
+
+        return true;
+    }
+
+    /**
+     * Tests whether a vote with that ID is registered.
+     * @param id The ID to test
+     * @return Whether the ID is in use
+     */
+    public boolean contains(final String id) {
+        return this.votes.containsKey(VoteRegistry.key(id));
+    }
+
+    /**
+     * Gets the vote with that ID.
+     * @param id The ID to test, case insensitive
+     * @return The vote with that ID or null if none exists
+     */
+    public Vote get(final String id) {
+        return this.votes.get(VoteRegistry.key(id));
+    }
+
+    /**
+     * Gets a view of every vote registered.
+     * @return An unmodifiable view of the votes
+     */
+    public Collection<Vote> getAll() {
+        return Collections.unmodifiableCollection(this.votes.values());
+    }
+
+    /**
+     * Gets a view of the votes open in a channel, oldest first.
+     * @param channel_id The snowflake of the channel
+     * @return An unmodifiable view of the votes
+     */
+    public Collection<Vote> getChannelVotes(final long channel_id) {
+        return VoteRegistry.view(this.channels, channel_id);
+    }
+
+    /**
+     * Gets a view of the votes open in a guild, oldest first.
+     * @param guild_id The snowflake of the guild
+     * @return An unmodifiable view of the votes
+     */
+    public Collection<Vote> getGuildVotes(final long guild_id) {
+        return VoteRegistry.view(this.guilds, guild_id);
+    }
+
+    /**
+     * Removes a vote from the registry.
+     * @param vote The vote to remove
+     * @return Whether the vote was registered
+     */
+    public boolean remove(final Vote vote) {
+        if (!this.votes.remove(VoteRegistry.key(vote.getId()), vote)) {
+            return false;
+        }
+
+        VoteRegistry.unindex(this.channels, vote.getChannelIdLong(), vote);
+        VoteRegistry.unindex(this.guilds, vote.getGuildIdLong(), vote);
+
+        if (vote.getMessageId() != 0) {
+            this.messages.remove(vote.getMessageId(), vote);
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the vote posted in a message.
+     * @param message_id The snowflake of the message
+     * @return The vote or null if no vote was posted in that message
+     */
+    public Vote getByMessage(final long message_id) {
+        return this.messages.get(message_id);
+    }
+
+    /**
+     * Counts the guilds with at least one vote open.
+     * @return The number of guilds
+     */
+    public int getGuildCount() {
+        return this.guilds.size();
+    }
+
+    /**
+     * Sets the message posted when a registered vote opened.
+     * @param vote The vote
+     * @param message_id The snowflake of the message
+     * @return Whether the vote is registered
+     */
+    public boolean setMessage(final Vote vote, final long message_id) {
+        if (this.votes.get(VoteRegistry.key(vote.getId())) != vote) {
+            return false;
+        }
+
+        vote.setMessageId(message_id);
+        this.messages.put(message_id, vote);
+
+        // The vote may have been removed in the meantime
+        if (this.votes.get(VoteRegistry.key(vote.getId())) != vote) {
+            this.messages.remove(message_id, vote);
+            return false;
+        }
+
+        return true;
+    }
+
+    public int size() {
+        return this.votes.size();
+    }
+
+}
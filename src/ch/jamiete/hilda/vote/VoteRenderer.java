@@ -0,0 +1,507 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.awt.Color;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.TextChannel;
+import org.apache.commons.lang3.StringUtils;
+import ch.jamiete.hilda.Hilda;
+import ch.jamiete.hilda.commands.CommandManager;
+
+/**
+ * Builds the message posted when a vote opens, along with its running tally, and the result of a vote once it has
+ * ended.
+ * <p>
+ * Display names are kept in a small cache so that members who vote often are not looked up every time. Entries are
+ * evicted least recently used first, and are dropped when a member changes their name or leaves the guild so that the
+ * cache never names a member who is no longer there.
+ */
+public class VoteRenderer {
+    private static final int CACHE_SIZE = 10000;
+    private static final int MAXIMUM_ABSTENTIONS = 15;
+
+    /**
+     * Builds the list of names for one field, stopping before it grows past what an embed field can hold.
+     */
+    private static final class Names {
+        private final StringBuilder builder = new StringBuilder();
+        private int omitted = 0;
+        private int departed = 0;
+
+        private void add(final String name) {
+            // Leave room for the separator and the counts of names omitted and members departed
+            if (this.omitted > 0 || this.builder.length() + name.length() + 2 > MessageEmbed.VALUE_MAX_LENGTH - 50) {
+                this.omitted++;
+                return;
+            }
+
+            if (this.builder.length() > 0) {
+                this.builder.append(", ");
+            }
+
+            this.builder.append(name);
+        }
+
+        /**
+         * Counts a member who has left the guild. Their ballot still counts but they cannot be named.
+         */
+        private void depart() {
+            this.departed++;
+        }
+
+        @Override
+        public String toString() {
+            final String names;
+
+            if (this.builder.length() == 0) {
+                names = this.omitted == 0 ? null : this.omitted + " members";
+            } else {
+                names = this.omitted == 0 ? this.builder.toString() : this.builder + " and " + this.omitted + " more";
+            }
+
+            if (this.departed == 0) {
+                return names == null ? "None" : names;
+            }
+
+            final String left = this.departed + (this.departed == 1 ? " member who has left" : " members who have left");
+            return names == null ? left : names + " and " + left;
+        }
+    }
+
+    /**
+     * How a vote turned out.
+     */
+    private static final class Outcome {
+        private final String text;
+        private final String summary;
+        private final Color color;
+
+        private Outcome(final String text, final String summary, final String color) {
+            this.text = text;
+            this.summary = summary;
+            this.color = Color.decode(color);
+        }
+    }
+
+    private static final class Key {
+        private final long guild;
+        private final long user;
+
+        private Key(final long guild, final long user) {
+            this.guild = guild;
+            this.user = user;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+            return this.guild == other.guild && this.user == other.user;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(this.guild * 31 + this.user);
+        }
+    }
+
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("d MMM yyyy").withZone(ZoneOffset.UTC);
+    private static final int HISTORY_QUESTION_LENGTH = 80;
+
+    private static Outcome getOutcome(final Integer percent, final int yeacount, final int naycount) {
+        if (percent == null) {
+            if (yeacount > naycount) {
+                return new Outcome("The yeas have it.", "passed", "#32b67a");
+            } else if (naycount > yeacount) {
+                return new Outcome("The nays have it.", "failed", "#e54b4b");
+            } else if (yeacount == 0 && naycount == 0) {
+                return new Outcome("The vote failed as everyone abstained.", "everyone abstained", "#c0c2ce");
+            } else {
+                return new Outcome("The vote tied.", "tied", "#c0c2ce");
+            }
+        }
+
+        final int sum = yeacount + naycount;
+
+        if (sum == 0) {
+            return new Outcome("The vote failed as everyone abstained.", "everyone abstained", "#c0c2ce");
+        }
+
+        final double yeapc = (double) yeacount / (double) sum * 100;
+
+        Hilda.getLogger().fine("yea " + yeacount + " nay " + naycount + " sum " + sum + " pc " + yeapc);
+
+        if (yeapc >= percent) {
+            return new Outcome("The yeas have it.", "passed", "#32b67a");
+        } else if (yeapc == 50.00) {
+            return new Outcome("The vote tied.", "tied", "#c0c2ce");
+        } else {
+            return new Outcome("The yeas (" + Math.round(yeapc) + "%) did not reach the required supermajority of " + percent + "%.", "failed", "#e54b4b");
+        }
+    }
+
+    private final Map<Key, String> names = new LinkedHashMap<Key, String>(256, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, String> eldest) {
+            return this.size() > VoteRenderer.CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Gets the name a user is displayed with in a guild.
+     * @param guild The guild
+     * @param user The user's snowflake
+     * @return The name or null if the user is no longer a member of the guild
+     */
+    public String getName(final Guild guild, final long user) {
+        final Key key = new Key(guild.getIdLong(), user);
+
+        synchronized (this.names) {
+            final String name = this.names.get(key);
+
+            if (name != null) {
+                return name;
+            }
+        }
+
+        final Member member = guild.getMemberById(user);
+
+        if (member == null) {
+            return null;
+        }
+
+        final String name = member.getEffectiveName();
+
+        synchronized (this.names) {
+            this.names.put(key, name);
+        }
+
+        return name;
+    }
+
+    /**
+     * Forgets a member's name in one guild.
+     * @param guild The guild
+     * @param user The user's snowflake
+     */
+    public void invalidate(final Guild guild, final long user) {
+        synchronized (this.names) {
+            this.names.remove(new Key(guild.getIdLong(), user));
+        }
+    }
+
+    /**
+     * Forgets a user's name in every guild.
+     * @param user The user's snowflake
+     */
+    public void invalidate(final long user) {
+        synchronized (this.names) {
+            this.names.keySet().removeIf(key -> key.user == user);
+        }
+    }
+
+    /**
+     * Builds the message posted when a vote opens, showing the tally so far. This only reads the running tallies, so it
+     * costs the same however many ballots have been cast.
+     * @param vote The vote
+     * @param reactions Whether members vote by reacting to the message
+     * @return The message
+     */
+    public MessageEmbed renderOpen(final Vote vote, final boolean reactions) {
+        final EmbedBuilder eb = new EmbedBuilder();
+
+        eb.setTitle(StringUtils.abbreviate(vote.getQuestion(), 256), null);
+        eb.setColor(Color.decode("#eeb200"));
+
+        if (vote.getPercent() == null) {
+            eb.setFooter("Vote " + vote.getId() + " opened by " + vote.getOpener(), vote.getAvatar());
+        } else {
+            eb.setFooter("Vote " + vote.getId() + " opened by " + vote.getOpener() + " with supermajority requirement of " + vote.getPercent() + " per cent", vote.getAvatar());
+        }
+
+        if (reactions) {
+            eb.addField("Agree?", "React with " + VoteReactions.YEA, false);
+            eb.addField("Disgree?", "React with " + VoteReactions.NAY, false);
+            eb.addField("Wish to abstain?", "React with " + VoteReactions.ABSTAIN, false);
+        } else {
+            eb.addField("Agree?", CommandManager.PREFIX + "v register " + vote.getId() + " yea", false);
+            eb.addField("Disgree?", CommandManager.PREFIX + "v register " + vote.getId() + " nay", false);
+            eb.addField("Wish to abstain?", CommandManager.PREFIX + "v register " + vote.getId() + " abstain", false);
+        }
+
+        if (vote.getResponseCount() > 0) {
+            final StringBuilder tally = new StringBuilder();
+
+            tally.append(vote.getCount(VoteResponse.YEA)).append(" yea, ");
+            tally.append(vote.getCount(VoteResponse.NAY)).append(" nay, ");
+            tally.append(vote.getCount(VoteResponse.ABSTAIN)).append(" abstain");
+
+            if (vote.getPending() >= 0) {
+                tally.append("\n").append(vote.getPending()).append(" yet to vote");
+            }
+
+            eb.addField("So far", tally.toString(), false);
+        }
+
+        return eb.build();
+    }
+
+    /**
+     * Builds the result of a vote from the archive.
+     * @param record The archived vote
+     * @param guild The guild the vote was held in
+     * @return The result
+     */
+    public MessageEmbed renderArchived(final VoteArchive.Record record, final Guild guild) {
+        final EmbedBuilder eb = new EmbedBuilder();
+
+        eb.setTitle(StringUtils.abbreviate(record.question, 256), null);
+        eb.setFooter("Vote " + record.id + " opened by " + record.opener + " and ended " + VoteRenderer.DATE.format(Instant.ofEpochMilli(record.finished)), null);
+
+        final Names yea = new Names();
+        final Names nay = new Names();
+        final Names abstain = new Names();
+
+        for (int i = 0; i < record.users.length; i++) {
+            final String name = this.getName(guild, record.users[i]);
+            final Names names;
+
+            switch (Vote.RESPONSES[record.responses[i]]) {
+                case YEA:
+                    names = yea;
+                    break;
+
+                case NAY:
+                    names = nay;
+                    break;
+
+                default:
+                    names = abstain;
+                    break;
+            }
+
+            if (name == null) {
+                names.depart();
+            } else {
+                names.add(name);
+            }
+        }
+
+        final int yeacount = record.getCount(VoteResponse.YEA);
+        final int naycount = record.getCount(VoteResponse.NAY);
+
+        eb.addField("YEA (" + yeacount + ")", yea.toString(), true);
+        eb.addField("NAY (" + naycount + ")", nay.toString(), true);
+        eb.addField("ABSTAINED (" + record.getCount(VoteResponse.ABSTAIN) + ")", abstain.toString(), true);
+
+        final Outcome outcome = VoteRenderer.getOutcome(record.percent, yeacount, naycount);
+        eb.addField("RESULT", outcome.text, false);
+        eb.setColor(outcome.color);
+
+        return eb.build();
+    }
+
+    /**
+     * Builds a list of archived votes.
+     * @param title The title of the list
+     * @param records The archived votes, newest first
+     * @return The list
+     */
+    public MessageEmbed renderHistory(final String title, final List<VoteArchive.Record> records) {
+        final EmbedBuilder eb = new EmbedBuilder();
+
+        eb.setTitle(title, null);
+        eb.setColor(Color.decode("#c0c2ce"));
+
+        if (records.isEmpty()) {
+            eb.setDescription("No votes have finished.");
+            return eb.build();
+        }
+
+        final StringBuilder sb = new StringBuilder();
+
+        for (final VoteArchive.Record record : records) {
+            final int yeacount = record.getCount(VoteResponse.YEA);
+            final int naycount = record.getCount(VoteResponse.NAY);
+
+            sb.append("**").append(record.id).append("** ").append(StringUtils.abbreviate(record.question, VoteRenderer.HISTORY_QUESTION_LENGTH));
+            sb.append("\n").append(VoteRenderer.DATE.format(Instant.ofEpochMilli(record.finished))).append(": ");
+            sb.append(VoteRenderer.getOutcome(record.percent, yeacount, naycount).summary);
+            sb.append(", ").append(yeacount).append(" yea to ").append(naycount).append(" nay\n\n");
+        }
+
+        eb.setDescription(sb.toString().trim());
+        eb.setFooter("Use " + CommandManager.PREFIX + "v history <id> to see how everyone voted", null);
+        return eb.build();
+    }
+
+    /**
+     * Builds one page of a list of open votes.
+     * @param votes Every vote in the list, oldest first
+     * @param page The page, counting from zero
+     * @param size The number of votes on each page
+     * @param channels Whether to show the channel each vote was opened in
+     * @return The page
+     */
+    public MessageEmbed renderList(final Vote[] votes, final int page, final int size, final boolean channels) {
+        final EmbedBuilder eb = new EmbedBuilder();
+        final int pages = (votes.length + size - 1) / size;
+
+        eb.setTitle("Currently managing " + votes.length + " " + (votes.length == 1 ? "vote" : "votes"), null);
+
+        if (pages > 1) {
+            eb.setFooter("Page " + (page + 1) + " of " + pages + ". React with " + VoteListings.PREVIOUS + " or " + VoteListings.NEXT + " to turn the page.", null);
+        }
+
+        for (int i = page * size; i < Math.min(votes.length, (page + 1) * size); i++) {
+            final Vote vote = votes[i];
+            final StringBuilder sb = new StringBuilder();
+
+            sb.append("ID *").append(vote.getId()).append("*\n");
+
+            if (channels) {
+                final TextChannel channel = vote.getChannel();
+                sb.append("Opened in *").append(channel == null ? "a deleted channel" : channel.getName()).append("* by ");
+            } else {
+                sb.append("Opened by ");
+            }
+
+            sb.append("*").append(vote.getOpener()).append("*\n");
+            final int received = vote.getResponseCount();
+            sb.append("Received ").append(received).append(" ").append(received == 1 ? "response" : "responses");
+
+            if (received > 0) {
+                final int yea = vote.getCount(VoteResponse.YEA);
+                final int nay = vote.getCount(VoteResponse.NAY);
+
+                sb.append("\n").append("Currently at ");
+
+                if (nay == 0) {
+                    sb.append("100");
+                } else if (yea == 0) {
+                    sb.append("0");
+                } else {
+                    sb.append(Math.round((double) yea / (yea + nay) * 100));
+                }
+
+                sb.append("% acceptance");
+            }
+
+            eb.addField(StringUtils.abbreviate(vote.getQuestion(), 256), sb.toString(), false);
+        }
+
+        return eb.build();
+    }
+
+    /**
+     * Builds the result of a vote.
+     * @param vote The vote
+     * @param channel The channel the vote was held in
+     * @param ballots The ballots cast
+     * @param yeacount The number of yeas
+     * @param naycount The number of nays
+     * @return The result
+     */
+    public MessageEmbed render(final Vote vote, final TextChannel channel, final BallotMap.Snapshot ballots, final int yeacount, final int naycount) {
+        final Guild guild = channel.getGuild();
+        final EmbedBuilder eb = new EmbedBuilder();
+
+        eb.setTitle(StringUtils.abbreviate(vote.getQuestion(), 256), null);
+
+        if (vote.getPercent() == null) {
+            eb.setFooter("Vote " + vote.getId() + " opened by " + vote.getOpener(), vote.getAvatar());
+        } else {
+            eb.setFooter("Vote " + vote.getId() + " opened by " + vote.getOpener() + " with supermajority requirement of " + vote.getPercent() + " per cent", vote.getAvatar());
+        }
+
+        final Names yea = new Names();
+        final Names nay = new Names();
+        final Names abstain = new Names();
+        int abstentions = 0;
+
+        for (int i = 0; i < ballots.size(); i++) {
+            final String name = this.getName(guild, ballots.users[i]);
+            final Names names;
+
+            switch (Vote.RESPONSES[ballots.responses[i]]) {
+                case YEA:
+                    names = yea;
+                    break;
+
+                case NAY:
+                    names = nay;
+                    break;
+
+                default:
+                    names = abstain;
+                    abstentions++;
+                    break;
+            }
+
+            // Members who have left are not named but their ballots still count, so they are counted in the list
+            if (name == null) {
+                names.depart();
+            } else {
+                names.add(name);
+            }
+        }
+
+        eb.addField("YEA (" + yeacount + ")", yea.toString(), true);
+        eb.addField("NAY (" + naycount + ")", nay.toString(), true);
+
+        final int pending = vote.getPending();
+
+        if (pending >= 0 && abstentions + pending > VoteRenderer.MAXIMUM_ABSTENTIONS) {
+            // Too many to name, so there is no need to find out who they are
+            abstentions += pending;
+        } else {
+            for (final Member member : channel.getMembers()) {
+                if (member.getUser().isBot() || vote.getResponse(member.getUser().getIdLong()) != null) {
+                    continue;
+                }
+
+                abstain.add(member.getEffectiveName());
+                abstentions++;
+            }
+        }
+
+        if (abstentions <= VoteRenderer.MAXIMUM_ABSTENTIONS) {
+            eb.addField("ABSTENTIONS (" + abstentions + ")", abstain.toString(), true);
+        }
+
+        final Outcome outcome = VoteRenderer.getOutcome(vote.getPercent(), yeacount, naycount);
+        eb.addField("RESULT", outcome.text, false);
+        eb.setColor(outcome.color);
+
+        return eb.build();
+    }
+
+}
@@ -0,0 +1,324 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import ch.jamiete.hilda.Hilda;
+import net.dv8tion.jda.api.JDA;
+
+/**
+ * Shares the votes between several bot processes, each owning the votes of a subset of guilds.
+ * <p>
+ * Guilds are divided into shards the same way as the gateway does, {@code (guild_id >> 22) % shards}, so that a
+ * process can own the votes of exactly the guilds it is connected to. Processes find each other through a folder they
+ * share: each writes a member file there every heartbeat saying which gateway shard it is connected to, and members
+ * whose file has not been written for five heartbeats are considered gone. A shard belongs to the member connected to
+ * it, or when no member is connected to it specifically, to the live member that ranks highest for it by rendezvous
+ * hashing, so that only the shards of a member that joins or leaves change hands.
+ * <p>
+ * Every member works out the same owners independently, but a shard is only taken once its lock file can be locked,
+ * and a member only unlocks a shard after it has written its final checkpoint and forgotten the shard's votes. A shard
+ * is therefore never loaded by two processes at once, even while members disagree about who owns it. Locks are held by
+ * the operating system, so they are released even if a process dies without handing its shards off.
+ * <p>
+ * Sharding is turned on by setting the number of shards with {@code -Dhilda.vote.shards}, which must be the same for
+ * every process. The shared folder defaults to {@code shards} inside {@link VotePlugin#FOLDER} and can be changed with
+ * {@code -Dhilda.vote.shards.folder}; each process is named with {@code -Dhilda.vote.shards.member}, which defaults to
+ * its process ID and host name. The heartbeat can be set in milliseconds with {@code -Dhilda.vote.shards.heartbeat}.
+ */
+public class VoteShards {
+    public static final int TOTAL = Integer.getInteger("hilda.vote.shards", 0);
+    public static final long HEARTBEAT = Long.getLong("hilda.vote.shards.heartbeat", 2000); // 2 seconds
+    public static final File FOLDER = new File(System.getProperty("hilda.vote.shards.folder", new File(VotePlugin.FOLDER, "shards").getPath()));
+    private static final int MISSED_HEARTBEATS = 5;
+
+    /**
+     * Gets the shard a guild's votes belong to.
+     * @param guild_id The snowflake of the guild
+     * @return The shard, which is always 0 when sharding is off
+     */
+    public static int getShard(final long guild_id) {
+        if (VoteShards.TOTAL <= 0) {
+            return 0;
+        }
+
+        return (int) ((guild_id >> 22) % VoteShards.TOTAL);
+    }
+
+    /**
+     * Checks whether sharding is on.
+     * @return Whether the votes are shared between processes
+     */
+    public static boolean isEnabled() {
+        return VoteShards.TOTAL > 0;
+    }
+
+    /**
+     * Ranks a member for a shard. Each shard ranks the members in a different order, so when a member leaves its
+     * shards are spread over the others rather than all moving to one.
+     */
+    private static long rank(final String member, final int shard) {
+        long hash = (long) member.hashCode() << 32 ^ shard;
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    private final VotePlugin plugin;
+    private final String member;
+    private final File members;
+    private final Map<Integer, FileChannel> locks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+
+    public VoteShards(final VotePlugin plugin) {
+        this.plugin = plugin;
+        this.member = System.getProperty("hilda.vote.shards.member", ManagementFactory.getRuntimeMXBean().getName());
+        this.members = new File(VoteShards.FOLDER, "members");
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "vote-shards");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Tries to lock a shard.
+     * @param shard The shard
+     * @return Whether the shard is now locked by this process
+     */
+    private boolean acquire(final int shard) {
+        FileChannel channel = null;
+
+        try {
+            channel = FileChannel.open(new File(VoteShards.FOLDER, "shard-" + shard + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            final FileLock lock = channel.tryLock();
+
+            if (lock != null) {
+                this.locks.put(shard, channel);
+                return true;
+            }
+        } catch (final IOException | OverlappingFileLockException e) {
+            Hilda.getLogger().log(Level.FINE, "Failed to lock shard " + shard, e);
+        }
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (final IOException ignored) {
+                // Nothing was locked
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the gateway shard this process is connected to.
+     * @return The shard or -1 if the process is connected to every guild or its shards do not match
+     */
+    private int getGatewayShard() {
+        final JDA.ShardInfo info = this.plugin.getHilda().getBot().getShardInfo();
+
+        if (info == null || info.getShardTotal() != VoteShards.TOTAL) {
+            return -1;
+        }
+
+        return info.getShardId();
+    }
+
+    /**
+     * Reads the member files, forgetting members that have stopped writing theirs.
+     * @return The gateway shard each live member is connected to, keyed by member
+     */
+    private Map<String, Integer> getMembers() {
+        final TreeMap<String, Integer> live = new TreeMap<>();
+        final File[] files = this.members.listFiles();
+        final long cutoff = System.currentTimeMillis() - VoteShards.HEARTBEAT * VoteShards.MISSED_HEARTBEATS;
+
+        if (files != null) {
+            for (final File file : files) {
+                if (file.lastModified() < cutoff) {
+                    continue;
+                }
+
+                try {
+                    live.put(file.getName(), Integer.parseInt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim()));
+                } catch (final IOException | NumberFormatException e) {
+                    // The file is being written; read it again next heartbeat
+                }
+            }
+        }
+
+        // This process is a member even if its own file could not be written
+        live.put(this.member, this.getGatewayShard());
+        return live;
+    }
+
+    /**
+     * Gets the shards this process owns.
+     * @return The shards, in order
+     */
+    public List<Integer> getOwned() {
+        final List<Integer> owned = new ArrayList<>(this.locks.keySet());
+        Collections.sort(owned);
+        return owned;
+    }
+
+    /**
+     * Works out which member should own a shard.
+     * @param members The live members
+     * @param shard The shard
+     * @return The member
+     */
+    private String getOwner(final Map<String, Integer> members, final int shard) {
+        String owner = null;
+        long best = 0;
+
+        for (final Map.Entry<String, Integer> entry : members.entrySet()) {
+            if (entry.getValue() == shard) {
+                return entry.getKey();
+            }
+
+            // Members connected to another gateway shard cannot see this shard's guilds
+            if (entry.getValue() >= 0) {
+                continue;
+            }
+
+            final long rank = VoteShards.rank(entry.getKey(), shard);
+
+            if (owner == null || rank > best) {
+                owner = entry.getKey();
+                best = rank;
+            }
+        }
+
+        return owner;
+    }
+
+    private void heartbeat() throws IOException {
+        if (!this.members.isDirectory()) {
+            this.members.mkdirs();
+        }
+
+        Files.write(new File(this.members, this.member).toPath(), String.valueOf(this.getGatewayShard()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Hands a shard off, saving and forgetting its votes before unlocking it.
+     * @param shard The shard
+     */
+    private void release(final int shard) {
+        try {
+            this.plugin.release(shard);
+        } finally {
+            final FileChannel channel = this.locks.remove(shard);
+
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (final IOException e) {
+                    Hilda.getLogger().log(Level.WARNING, "Failed to unlock shard " + shard, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts taking and handing off shards in the background.
+     */
+    public void start() {
+        Hilda.getLogger().info("Sharing votes as " + this.member + " in " + VoteShards.TOTAL + " shards through " + VoteShards.FOLDER);
+        this.executor.scheduleWithFixedDelay(this::tick, 0, VoteShards.HEARTBEAT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops taking shards and hands off every shard this process owns.
+     */
+    public void stop() {
+        this.executor.shutdown();
+
+        try {
+            this.executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (final int shard : this.getOwned()) {
+            this.release(shard);
+        }
+
+        // Leave now rather than waiting for the others to notice the missing heartbeats
+        new File(this.members, this.member).delete();
+    }
+
+    private void tick() {
+        try {
+            this.heartbeat();
+        } catch (final IOException e) {
+            Hilda.getLogger().log(Level.WARNING, "Failed to write the heartbeat for " + this.member, e);
+        }
+
+        final Map<String, Integer> members = this.getMembers();
+        final Set<Integer> owned = this.locks.keySet();
+
+        for (int shard = 0; shard < VoteShards.TOTAL; shard++) {
+            final boolean wanted = this.member.equals(this.getOwner(members, shard));
+
+            try {
+                if (!wanted && owned.contains(shard)) {
+                    this.release(shard);
+                    Hilda.getLogger().info("Handed off shard " + shard);
+                } else if (wanted && !owned.contains(shard) && this.acquire(shard)) {
+                    try {
+                        this.plugin.acquire(shard);
+                        Hilda.getLogger().info("Took shard " + shard);
+                    } catch (final Exception e) {
+                        Hilda.getLogger().log(Level.SEVERE, "Failed to take shard " + shard, e);
+                        this.release(shard);
+                    }
+                }
+            } catch (final Exception e) {
+                Hilda.getLogger().log(Level.SEVERE, "Failed to update shard " + shard, e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Reads and writes snapshots of the open votes.
+ * <p>
+ * A snapshot starts with a magic number and format version, followed by a table of every distinct string and then the
+ * votes. Snowflakes are stored as 64-bit integers and strings as indexes into the table. Each vote's ballots are
+ * stored as an array of user snowflakes followed by their responses packed four to a byte. Version 2 added the
+ * snowflake of the message each vote was posted in; version 1 snapshots are still read.
+ * <p>
+ * Snapshots written by older versions using Java serialisation are still read and are replaced by the new format the
+ * next time the votes are saved.
+ */
+public class VoteSnapshot {
+    private static final int MAGIC = 0x48564F54; // HVOT
+    private static final int VERSION = 2;
+
+    /**
+     * The first two bytes of a Java serialisation stream.
+     */
+    private static final short LEGACY_MAGIC = (short) 0xACED;
+
+    private static String getString(final String[] strings, final int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    static String getSnowflake(final long snowflake) {
+        return snowflake == 0 ? null : Long.toUnsignedString(snowflake);
+    }
+
+    static long parseSnowflake(final String snowflake) {
+        if (snowflake == null) {
+            return 0;
+        }
+
+        try {
+            return Long.parseUnsignedLong(snowflake);
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the votes from a snapshot in either format.
+     * @param file The snapshot
+     * @return The votes in the snapshot
+     * @throws IOException if the snapshot cannot be read or is malformed
+     */
+    public static List<Vote> read(final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < 8) {
+                throw new IOException("Snapshot is truncated");
+            }
+
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getShort(0) == VoteSnapshot.LEGACY_MAGIC) {
+                return VoteSnapshot.readLegacy(file);
+            }
+
+            return VoteSnapshot.read(buffer);
+        }
+    }
+
+    /**
+     * Reads the votes from a snapshot held in memory. Snapshots written using Java serialisation are not read.
+     * @param bytes The snapshot
+     * @return The votes in the snapshot
+     * @throws IOException if the snapshot is malformed
+     */
+    public static List<Vote> read(final byte[] bytes) throws IOException {
+        if (bytes.length < 8) {
+            throw new IOException("Snapshot is truncated");
+        }
+
+        return VoteSnapshot.read(ByteBuffer.wrap(bytes));
+    }
+
+    private static List<Vote> read(final ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != VoteSnapshot.MAGIC) {
+            throw new IOException("Not a vote snapshot");
+        }
+
+        final int version = buffer.getInt();
+
+        if (version < 1 || version > VoteSnapshot.VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        return VoteSnapshot.readVotes(buffer, version);
+    }
+
+    private static List<Vote> readLegacy(final File file) throws IOException {
+        try (ObjectInputStream obj = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            @SuppressWarnings("unchecked")
+            final ArrayList<Vote> list = (ArrayList<Vote>) obj.readObject();
+
+            return list == null ? new ArrayList<>() : list;
+        } catch (final ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static List<Vote> readVotes(final ByteBuffer buffer, final int version) {
+        final String[] strings = new String[buffer.getInt()];
+
+        for (int i = 0; i < strings.length; i++) {
+            final byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        final int count = buffer.getInt();
+        final ArrayList<Vote> votes = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            final Vote vote = new Vote();
+
+            vote.setId(VoteSnapshot.getString(strings, buffer.getInt()));
+            vote.setChannelId(buffer.getLong());
+            vote.setGuildId(buffer.getLong());
+            vote.setOpenerId(VoteSnapshot.getSnowflake(buffer.getLong()));
+            vote.setOpener(VoteSnapshot.getString(strings, buffer.getInt()));
+            vote.setAvatar(VoteSnapshot.getString(strings, buffer.getInt()));
+            vote.setQuestion(VoteSnapshot.getString(strings, buffer.getInt()));
+
+            final short percent = buffer.getShort();
+            vote.setPercent(percent < 0 ? null : (int) percent);
+            vote.setCommencement(buffer.getLong());
+
+            if (version >= 2) {
+                vote.setMessageId(buffer.getLong());
+            }
+
+            final int ballots = buffer.getInt();
+            final int users = buffer.position();
+            final int responses = users + ballots * 8;
+            final VoteResponse[] values = VoteResponse.values();
+
+            for (int b = 0; b < ballots; b++) {
+                final long user = buffer.getLong(users + b * 8);
+                final int packed = buffer.get(responses + (b >> 2)) >> ((b & 3) << 1) & 3;
+
+                vote.register(user, values[packed]);
+            }
+
+            buffer.position(responses + (ballots + 3 >> 2));
+            votes.add(vote);
+        }
+
+        return votes;
+    }
+
+    /**
+     * Writes the votes to a snapshot.
+     * @param votes The votes to write
+     * @param stream The stream to write to, which is not closed
+     * @return The number of bytes written
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static long write(final Collection<Vote> votes, final OutputStream stream) throws IOException {
+        final ArrayList<Vote> list = new ArrayList<>(votes);
+        final HashMap<String, Integer> table = new HashMap<>();
+        final ArrayList<String> strings = new ArrayList<>();
+
+        for (final Vote vote : list) {
+            for (final String string : new String[] { vote.getId(), vote.getOpener(), vote.getAvatar(), vote.getQuestion() }) {
+                if (string != null && !table.containsKey(string)) {
+                    table.put(string, strings.size());
+                    strings.add(string);
+                }
+            }
+        }
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+
+        out.writeInt(VoteSnapshot.MAGIC);
+        out.writeInt(VoteSnapshot.VERSION);
+
+        out.writeInt(strings.size());
+        for (final String string : strings) {
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        out.writeInt(list.size());
+        for (final Vote vote : list) {
+            out.writeInt(vote.getId() == null ? -1 : table.get(vote.getId()));
+            out.writeLong(vote.getChannelIdLong());
+            out.writeLong(vote.getGuildIdLong());
+            out.writeLong(VoteSnapshot.parseSnowflake(vote.getOpenerId()));
+            out.writeInt(vote.getOpener() == null ? -1 : table.get(vote.getOpener()));
+            out.writeInt(vote.getAvatar() == null ? -1 : table.get(vote.getAvatar()));
+            out.writeInt(vote.getQuestion() == null ? -1 : table.get(vote.getQuestion()));
+            out.writeShort(vote.getPercent() == null ? -1 : vote.getPercent());
+            out.writeLong(vote.getCommencement());
+            out.writeLong(vote.getMessageId());
+
+            final BallotMap.Snapshot ballots = vote.getBallots();
+
+            out.writeInt(ballots.size());
+            for (final long user : ballots.users) {
+                out.writeLong(user);
+            }
+
+            int packed = 0;
+            for (int b = 0; b < ballots.size(); b++) {
+                packed |= ballots.responses[b] << ((b & 3) << 1);
+
+                if ((b & 3) == 3) {
+                    out.writeByte(packed);
+                    packed = 0;
+                }
+            }
+
+            if ((ballots.size() & 3) != 0) {
+                out.writeByte(packed);
+            }
+        }
+
+        out.flush();
+        return out.size();
+    }
+
+    /**
+     * Writes the votes to a snapshot file, replacing its contents.
+     * @param votes The votes to write
+     * @param file The file to write to
+     * @return The number of bytes written
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static long write(final Collection<Vote> votes, final File file) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(file, false)) {
+            return VoteSnapshot.write(votes, stream);
+        }
+    }
+
+    private VoteSnapshot() {
+        // Static utility
+    }
+
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Where the votes of a partition are saved.
+ * <p>
+ * The votes themselves always live on the heap; a store is told about each change as it happens and may save it then
+ * or later. Changes are reported from whichever thread made them, so implementations must be thread-safe and should
+ * not block. The store is chosen with {@code -Dhilda.vote.store}: {@code file} (the default) for a snapshot and
+ * journal, {@code memory} for a store that only lasts as long as the process, or {@code database} for an embedded H2
+ * database.
+ */
+public interface VoteStore {
+
+    /**
+     * Starts any saving done in the background. Called once the partition's votes have been loaded and are being
+     * managed.
+     */
+    void begin();
+
+    /**
+     * Records that a vote has finished.
+     * @param vote The vote
+     */
+    void close(Vote vote);
+
+    /**
+     * Records that a vote has been deleted without finishing.
+     * @param vote The vote
+     */
+    void delete(Vote vote);
+
+    /**
+     * Gets how long the last save took.
+     * @return The duration in milliseconds or -1 if nothing has been saved
+     */
+    long getLastSaveDuration();
+
+    /**
+     * Gets the size of what the store holds on disk.
+     * @return The size in bytes or -1 if it is not known
+     */
+    long getLastSaveSize();
+
+    /**
+     * Reads the saved votes and gets ready to record changes to them.
+     * @return The votes, keyed by lower case ID
+     */
+    LinkedHashMap<String, Vote> load();
+
+    /**
+     * Records that a vote has changed in some way.
+     * @param vote The vote
+     */
+    void mark(Vote vote);
+
+    /**
+     * Records the message posted when a vote opened.
+     * @param vote The vote
+     */
+    void message(Vote vote);
+
+    /**
+     * Records a ballot.
+     * @param vote The vote
+     * @param user The snowflake of the user
+     * @param response The user's response
+     */
+    void register(Vote vote, long user, VoteResponse response);
+
+    /**
+     * Saves every vote in the partition as it is now.
+     * @return Whether the votes were saved
+     */
+    boolean save();
+
+    /**
+     * Saves anything outstanding and releases the store's resources.
+     */
+    void shutdown();
+
+    /**
+     * Records that a vote has been opened.
+     * @param vote The vote
+     */
+    void start(Vote vote);
+
+    /**
+     * Records that a ballot has been removed.
+     * @param vote The vote
+     * @param user The snowflake of the user whose ballot was removed
+     */
+    void unregister(Vote vote, long user);
+
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.TextChannel;
+import ch.jamiete.hilda.Hilda;
+
+/**
+ * Keeps the message posted when each vote opened showing its current tally.
+ * <p>
+ * Ballots only mark their vote as changed. Once per interval every changed vote has its message edited to show the
+ * tally at that moment, so however quickly ballots arrive each message is edited at most once per interval and the
+ * changes in between are merged into one edit.
+ * <p>
+ * The interval can be set in milliseconds with {@code -Dhilda.vote.tally.interval}.
+ */
+public class VoteTally {
+    public static final long INTERVAL = Long.getLong("hilda.vote.tally.interval", 5000); // 5 seconds
+
+    private final VotePlugin plugin;
+    private final Set<Vote> changed = ConcurrentHashMap.newKeySet();
+    private ScheduledFuture<?> future;
+
+    public VoteTally(final VotePlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Records that a vote's tally has changed and its message should be edited.
+     * @param vote The vote
+     */
+    public void mark(final Vote vote) {
+        if (vote.getMessageId() != 0 && !vote.isClosed()) {
+            this.changed.add(vote);
+        }
+    }
+
+    /**
+     * Starts editing messages on the executor.
+     */
+    public void start() {
+        this.future = this.plugin.getHilda().getExecutor().scheduleWithFixedDelay(() -> {
+            try {
+                this.update();
+            } catch (final Exception e) {
+                Hilda.getLogger().log(Level.WARNING, "Failed to update vote tallies", e);
+            }
+        }, VoteTally.INTERVAL, VoteTally.INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops editing messages. Changes not yet shown are dropped.
+     */
+    public void stop() {
+        if (this.future != null) {
+            this.future.cancel(false);
+        }
+
+        this.changed.clear();
+    }
+
+    /**
+     * Edits the message of every vote that has changed since the last update.
+     */
+    public void update() {
+        final ArrayList<Vote> votes = new ArrayList<>(this.changed);
+        this.changed.removeAll(votes);
+
+        for (final Vote vote : votes) {
+            if (vote.isClosed()) {
+                continue;
+            }
+
+            final TextChannel channel = vote.getChannel();
+
+            if (channel == null) {
+                continue;
+            }
+
+            final boolean reactions = VoteReactions.ENABLED && channel.getGuild().getSelfMember().hasPermission(channel, Permission.MESSAGE_ADD_REACTION);
+
+            channel.editMessageById(vote.getMessageId(), this.plugin.getRenderer().renderOpen(vote, reactions)).queue(null, failure -> {
+                // The message has most likely been deleted
+                Hilda.getLogger().fine("Failed to update the tally of vote " + vote.getId() + ": " + failure.getMessage());
+            });
+        }
+    }
+
+}
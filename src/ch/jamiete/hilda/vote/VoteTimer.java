@@ -15,18 +15,269 @@
  *******************************************************************************/
 package ch.jamiete.hilda.vote;
 
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import ch.jamiete.hilda.Hilda;
 
-public class VoteTimer extends TimerTask {
-    private final Vote vote;
+/**
+ * A hashed timing wheel that ends votes when they reach their deadline.
+ * <p>
+ * The wheel is a ring of buckets, each holding the votes due in one tick. A single driver thread advances one bucket
+ * per tick and expires every vote in it whose remaining rounds have run out. Scheduling and cancelling only add to a
+ * queue, so both are O(1) and never contend with the driver; the driver moves new and cancelled timeouts in and out of
+ * their buckets at the start of each tick. All votes expiring in a tick are handed over as one batch.
+ */
+public class VoteTimer {
+    public static final long TICK = 1000; // 1 second
+    private static final int WHEEL_SIZE = 4096; // 68 minutes per revolution
+    private static final int MAX_TRANSFERS = 100000;
 
-    public VoteTimer(final Vote vote) {
-        this.vote = vote;
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * A vote's place on the wheel.
+     */
+    public static final class Timeout {
+        private final VoteTimer timer;
+        private final Vote vote;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(VoteTimer.WAITING);
+
+        // Only touched by the driver thread
+        private long rounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(final VoteTimer timer, final Vote vote, final long deadline) {
+            this.timer = timer;
+            this.vote = vote;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the vote from expiring. Has no effect if it has already expired.
+         * @return Whether the timeout was cancelled by this call
+         */
+        public boolean cancel() {
+            if (!this.state.compareAndSet(VoteTimer.WAITING, VoteTimer.CANCELLED)) {
+                return false;
+            }
+
+            this.timer.cancelled.add(this);
+            this.timer.pending.decrementAndGet();
+            return true;
+        }
+
+        public long getDeadline() {
+            return this.deadline;
+        }
+
+        public Vote getVote() {
+            return this.vote;
+        }
+
+        public boolean isCancelled() {
+            return this.state.get() == VoteTimer.CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return this.state.get() == VoteTimer.EXPIRED;
+        }
+    }
+
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(final Timeout timeout) {
+            timeout.bucket = this;
+
+            if (this.head == null) {
+                this.head = this.tail = timeout;
+            } else {
+                this.tail.next = timeout;
+                timeout.previous = this.tail;
+                this.tail = timeout;
+            }
+        }
+
+        private void expire(final List<Vote> expired) {
+            Timeout timeout = this.head;
+
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+
+                if (timeout.rounds <= 0) {
+                    this.remove(timeout);
+
+                    if (timeout.state.compareAndSet(VoteTimer.WAITING, VoteTimer.EXPIRED)) {
+                        timeout.timer.pending.decrementAndGet();
+                        expired.add(timeout.vote);
+                    }
+                } else {
+                    timeout.rounds--;
+                }
+
+                timeout = next;
+            }
+        }
+
+        private void remove(final Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                this.head = timeout.next;
+            }
+
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                this.tail = timeout.previous;
+            }
+
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private final Bucket[] wheel = new Bucket[VoteTimer.WHEEL_SIZE];
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Consumer<List<Vote>> expiry;
+    private final Thread driver;
+
+    private volatile long start;
+    private volatile boolean running = true;
+    private long tick = 0;
+
+    /**
+     * @param expiry Receives each batch of votes that reach their deadline, on the driver thread. It should hand the
+     *        batch to another thread rather than end the votes itself.
+     */
+    public VoteTimer(final Consumer<List<Vote>> expiry) {
+        this.expiry = expiry;
+
+        for (int i = 0; i < this.wheel.length; i++) {
+            this.wheel[i] = new Bucket();
+        }
+
+        this.driver = new Thread(this::run, "vote-timer");
+        this.driver.setDaemon(true);
+    }
+
+    /**
+     * Gets the number of votes waiting to expire.
+     * @return The number of votes
+     */
+    public int getPending() {
+        return this.pending.get();
+    }
+
+    private void run() {
+        final ArrayList<Vote> expired = new ArrayList<>();
+
+        while (this.running) {
+            final long deadline = this.start + (this.tick + 1) * VoteTimer.TICK;
+            long sleep = deadline - System.currentTimeMillis();
+
+            while (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (final InterruptedException e) {
+                    if (!this.running) {
+                        return;
+                    }
+                }
+
+                sleep = deadline - System.currentTimeMillis();
+            }
+
+            this.unlinkCancelled();
+            this.transferScheduled();
+
+            this.wheel[(int) (this.tick & VoteTimer.WHEEL_SIZE - 1)].expire(expired);
+            this.tick++;
+
+            if (!expired.isEmpty()) {
+                try {
+                    this.expiry.accept(new ArrayList<>(expired));
+                } catch (final Exception e) {
+                    Hilda.getLogger().log(Level.SEVERE, "Failed to expire " + expired.size() + " votes", e);
+                }
+
+                expired.clear();
+            }
+        }
+    }
+
+    /**
+     * Schedules a vote to expire.
+     * @param vote The vote
+     * @param deadline The time to expire the vote at, in milliseconds since the epoch
+     * @return The timeout, which can be used to cancel the expiry
+     */
+    public Timeout schedule(final Vote vote, final long deadline) {
+        final Timeout timeout = new Timeout(this, vote, deadline);
+
+        this.pending.incrementAndGet();
+        this.scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Starts the driver thread.
+     */
+    public void start() {
+        this.start = System.currentTimeMillis();
+        this.driver.start();
     }
 
-    @Override
-    public void run() {
-        this.vote.finish();
+    /**
+     * Stops the driver thread. Votes that have not yet expired are left as they are.
+     */
+    public void stop() {
+        this.running = false;
+        this.driver.interrupt();
+    }
+
+    private void transferScheduled() {
+        for (int i = 0; i < VoteTimer.MAX_TRANSFERS; i++) {
+            final Timeout timeout = this.scheduled.poll();
+
+            if (timeout == null) {
+                return;
+            }
+
+            if (timeout.state.get() != VoteTimer.WAITING) {
+                continue;
+            }
+
+            // Anything already due goes in the current bucket and expires this tick
+            final long due = Math.max((timeout.deadline - this.start) / VoteTimer.TICK, this.tick);
+
+            timeout.rounds = (due - this.tick) / VoteTimer.WHEEL_SIZE;
+            this.wheel[(int) (due & VoteTimer.WHEEL_SIZE - 1)].add(timeout);
+        }
+    }
+
+    private void unlinkCancelled() {
+        Timeout timeout;
+
+        while ((timeout = this.cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
     }
 
 }
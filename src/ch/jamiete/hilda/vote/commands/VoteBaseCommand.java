@@ -16,26 +16,75 @@
 package ch.jamiete.hilda.vote.commands;
 
 import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 import ch.jamiete.hilda.Hilda;
 import ch.jamiete.hilda.commands.ChannelSeniorCommand;
+import ch.jamiete.hilda.commands.ChannelSubCommand;
+import ch.jamiete.hilda.vote.VoteMetrics;
 import ch.jamiete.hilda.vote.VotePlugin;
+import net.dv8tion.jda.api.entities.Message;
 
 public class VoteBaseCommand extends ChannelSeniorCommand {
+    private final VotePlugin plugin;
+
+    /**
+     * The timings for each subcommand, by name and alias.
+     */
+    private final Map<String, VoteMetrics.Histogram> timings = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
 
     public VoteBaseCommand(final Hilda hilda, final VotePlugin plugin) {
         super(hilda);
 
+        this.plugin = plugin;
+
         this.setName("vote");
         this.setAliases(Arrays.asList(new String[] { "v" }));
         this.setDescription("Vote management system.");
 
-        this.registerSubcommand(new VoteCloseCommand(hilda, this, plugin));
-        this.registerSubcommand(new VoteDeleteCommand(hilda, this, plugin));
-        this.registerSubcommand(new VoteListCommand(hilda, this, plugin));
-        this.registerSubcommand(new VoteOpenCommand(hilda, this, plugin));
-        this.registerSubcommand(new VoteRegisterCommand(hilda, this, plugin));
-        this.registerSubcommand(new VoteServerlistCommand(hilda, this, plugin));
-        this.registerSubcommand(new VoteStartCommand(hilda, this, plugin));
+        this.register(new VoteCloseCommand(hilda, this, plugin));
+        this.register(new VoteDeleteCommand(hilda, this, plugin));
+        this.register(new VoteHistoryCommand(hilda, this, plugin));
+        this.register(new VoteListCommand(hilda, this, plugin));
+        this.register(new VoteOpenCommand(hilda, this, plugin));
+        this.register(new VoteRegisterCommand(hilda, this, plugin));
+        this.register(new VoteServerlistCommand(hilda, this, plugin));
+        this.register(new VoteStartCommand(hilda, this, plugin));
+        this.register(new VoteStatsCommand(hilda, this, plugin));
+    }
+
+    @Override
+    public void execute(final Message message, final String[] arguments, final String label) {
+        // Another process owns the votes in this server and answers for them
+        if (!this.plugin.owns(message.getGuild().getIdLong())) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+
+        super.execute(message, arguments, label);
+
+        final VoteMetrics.Histogram timing = arguments.length == 0 ? null : this.timings.get(arguments[0]);
+
+        if (timing != null) {
+            timing.since(start);
+        }
+    }
+
+    private void register(final ChannelSubCommand command) {
+        this.registerSubcommand(command);
+
+        final VoteMetrics.Histogram timing = this.plugin.getMetrics().getCommand(command.getName());
+
+        if (timing != null) {
+            this.timings.put(command.getName(), timing);
+
+            if (command.getAliases() != null) {
+                for (final String alias : command.getAliases()) {
+                    this.timings.put(alias, timing);
+                }
+            }
+        }
     }
 
 }
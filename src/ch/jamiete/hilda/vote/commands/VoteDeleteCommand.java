@@ -24,8 +24,6 @@ import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
 
-import java.util.Objects;
-
 public class VoteDeleteCommand extends ChannelSubCommand {
     private final VotePlugin plugin;
 
@@ -49,7 +47,7 @@ public class VoteDeleteCommand extends ChannelSubCommand {
 
         final Vote vote = this.plugin.getVoteByID(arguments[0]);
 
-        if (vote == null || !Objects.equals(this.hilda.getBot().getTextChannelById(vote.getChannelId()), message.getChannel())) {
+        if (vote == null || vote.getChannelIdLong() != message.getChannel().getIdLong()) {
             this.reply(message, "I couldn't find that vote.");
             return;
         }
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote.commands;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.TextChannel;
+import org.apache.commons.lang3.StringUtils;
+import ch.jamiete.hilda.Hilda;
+import ch.jamiete.hilda.commands.ChannelSeniorCommand;
+import ch.jamiete.hilda.commands.ChannelSubCommand;
+import ch.jamiete.hilda.vote.VoteArchive;
+import ch.jamiete.hilda.vote.VotePlugin;
+
+public class VoteHistoryCommand extends ChannelSubCommand {
+    private static final int LIMIT = 10;
+
+    private final VotePlugin plugin;
+
+    protected VoteHistoryCommand(final Hilda hilda, final ChannelSeniorCommand senior, final VotePlugin plugin) {
+        super(hilda, senior);
+
+        this.plugin = plugin;
+
+        this.setName("history");
+        this.setDescription("Lists the votes that have finished on the server, or shows how everyone voted in one.");
+    }
+
+    @Override
+    public void execute(final Message message, final String[] arguments, final String label) {
+        final VoteArchive archive = this.plugin.getArchive(message.getGuild().getIdLong());
+
+        if (archive == null) {
+            this.reply(message, "I can't find the votes that have finished right now.");
+            return;
+        }
+
+        String id = null;
+        String channel_id = null;
+        String opener_id = null;
+        String title = "Finished votes";
+        long from = Long.MIN_VALUE;
+        int consumed = 0;
+
+        if (arguments.length > 0 && StringUtils.isNumeric(arguments[arguments.length - 1])) {
+            if (arguments[arguments.length - 1].length() > 9) {
+                this.usage(message, "[id | @member | #channel] [days]", label);
+                return;
+            }
+
+            final int days = Integer.parseInt(arguments[arguments.length - 1]);
+
+            from = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+            title += " in the last " + days + (days == 1 ? " day" : " days");
+            consumed++;
+        }
+
+        if (arguments.length - consumed > 1) {
+            this.usage(message, "[id | @member | #channel] [days]", label);
+            return;
+        }
+
+        if (arguments.length - consumed == 1) {
+            final List<Member> members = message.getMentionedMembers();
+            final List<TextChannel> channels = message.getMentionedChannels();
+
+            if (!members.isEmpty()) {
+                opener_id = members.get(0).getUser().getId();
+                title += " opened by " + members.get(0).getEffectiveName();
+            } else if (!channels.isEmpty()) {
+                channel_id = channels.get(0).getId();
+                title += " in #" + channels.get(0).getName();
+            } else {
+                id = arguments[0];
+            }
+        }
+
+        final String guild_id = message.getGuild().getId();
+        final String vote_id = id;
+        final String channel = channel_id;
+        final String opener = opener_id;
+        final String heading = title;
+        final long earliest = from;
+
+        // The archive is read from disk, so keep it off the thread that handles events
+        this.hilda.getExecutor().execute(() -> {
+            final List<VoteArchive.Record> records;
+
+            try {
+                records = archive.search(guild_id, channel, opener, vote_id, earliest, Long.MAX_VALUE, vote_id == null ? VoteHistoryCommand.LIMIT : 1);
+            } catch (final IOException e) {
+                Hilda.getLogger().log(Level.WARNING, "Failed to search the vote archive", e);
+                this.reply(message, "I couldn't read the votes that have finished.");
+                return;
+            }
+
+            if (vote_id == null) {
+                this.reply(message, this.plugin.getRenderer().renderHistory(heading, records));
+            } else if (records.isEmpty()) {
+                this.reply(message, "I couldn't find that vote.");
+            } else {
+                this.reply(message, this.plugin.getRenderer().renderArchived(records.get(0), message.getGuild()));
+            }
+        });
+    }
+
+}
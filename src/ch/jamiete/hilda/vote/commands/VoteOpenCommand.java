@@ -15,8 +15,7 @@
  *******************************************************************************/
 package ch.jamiete.hilda.vote.commands;
 
-import java.util.ArrayList;
-import java.util.stream.Collectors;
+import java.util.List;
 import net.dv8tion.jda.api.EmbedBuilder;
 import net.dv8tion.jda.api.MessageBuilder;
 import net.dv8tion.jda.api.entities.Member;
@@ -45,20 +44,17 @@ public class VoteOpenCommand extends ChannelSubCommand {
     public void execute(final Message message, final String[] arguments, final String label) {
         final Member member = message.getGuild().getMember(message.getAuthor());
 
-        final ArrayList<Vote> eligible = new ArrayList<>();
-        for (final Vote vote : this.plugin.getVotes()) {
-            if (this.hilda.getBot().getTextChannelById(vote.getChannelId()).getGuild() == message.getGuild() && this.hilda.getBot().getTextChannelById(vote.getChannelId()) == message.getTextChannel()) {
-                eligible.add(vote);
-            }
-        }
+        final long channel_id = message.getTextChannel().getIdLong();
 
-        if (eligible.size() == 0) {
+        // Getting the channel's votes validates them, which indexes who is yet to respond
+        final boolean open = !this.plugin.getChannelVotes(channel_id).isEmpty();
+        final List<Vote> eligible = this.plugin.getPendingVotes(message.getGuild().getIdLong(), channel_id, member.getUser().getIdLong());
+
+        if (eligible.size() == 0 && !open) {
             this.reply(message, "I am not managing any votes right now.");
             return;
         }
 
-        eligible.removeAll(eligible.stream().filter(vote -> vote.hasVoted(member)).collect(Collectors.toList()));
-
         if (eligible.size() == 0) {
             this.reply(message, "You've responded to all the currently open votes.");
             return;
@@ -76,11 +72,12 @@ public class VoteOpenCommand extends ChannelSubCommand {
 
             mb.append("ID ").append(vote.getId(), MessageBuilder.Formatting.ITALICS).append("\n");
             mb.append("Opened by ").append(vote.getOpener(), MessageBuilder.Formatting.ITALICS).append("\n");
-            mb.append("Received ").append(vote.getResponses().size()).append(" ").append(vote.getResponses().size() == 1 ? "response" : "responses");
+            final int received = vote.getResponseCount();
+            mb.append("Received ").append(received).append(" ").append(received == 1 ? "response" : "responses");
 
-            if (!vote.getResponses().isEmpty()) {
-                final int yea = (int) vote.getResponses().values().stream().filter(response -> response == VoteResponse.YEA).count();
-                final int nay = (int) vote.getResponses().values().stream().filter(response -> response == VoteResponse.NAY).count();
+            if (received > 0) {
+                final int yea = vote.getCount(VoteResponse.YEA);
+                final int nay = vote.getCount(VoteResponse.NAY);
 
                 mb.append("\n").append("Currently at ");
 
@@ -15,8 +15,11 @@
  *******************************************************************************/
 package ch.jamiete.hilda.vote.commands;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import ch.jamiete.hilda.Hilda;
 import ch.jamiete.hilda.commands.ChannelSeniorCommand;
@@ -24,7 +27,6 @@ import ch.jamiete.hilda.commands.ChannelSubCommand;
 import ch.jamiete.hilda.vote.Vote;
 import ch.jamiete.hilda.vote.VotePlugin;
 import ch.jamiete.hilda.vote.VoteResponse;
-import net.dv8tion.jda.api.MessageBuilder;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
 
@@ -37,52 +39,165 @@ public class VoteRegisterCommand extends ChannelSubCommand {
         this.plugin = plugin;
 
         this.setName("register");
-        this.setDescription("Registers a vote.");
+        this.setDescription("Registers a vote, or several at once.");
         this.setAliases(Collections.singletonList("r"));
     }
 
     @Override
     public void execute(final Message message, final String[] arguments, final String label) {
-        final Member member = message.getGuild().getMember(message.getAuthor());
+        if (arguments.length < 2 || arguments.length % 2 != 0) {
+            this.usage(message, "<id> <response> [<id> <response>...]", label);
+            return;
+        }
 
-        final Vote vote = this.plugin.getVoteByID(arguments[0]);
+        final Member member = message.getGuild().getMember(message.getAuthor());
 
-        if (vote == null || vote != null && !this.hilda.getBot().getTextChannelById(vote.getChannelId()).equals(message.getChannel())) {
-            this.reply(message, "I couldn't find that vote.");
+        if (arguments.length == 2) {
+            this.registerOne(message, member, arguments[0], arguments[1]);
             return;
         }
 
-        VoteResponse response = null;
+        // Later pairs for the same vote replace earlier ones
+        final Map<Vote, VoteResponse> batch = new LinkedHashMap<>();
+        final List<String> missing = new ArrayList<>();
+        final List<String> unrecognised = new ArrayList<>();
+
+        for (int i = 0; i < arguments.length; i += 2) {
+            final Vote vote = this.find(message, arguments[i]);
+
+            if (vote == null) {
+                missing.add(arguments[i]);
+                continue;
+            }
+
+            final VoteResponse response = VoteRegisterCommand.parse(arguments[i + 1]);
+
+            if (response == null) {
+                unrecognised.add(arguments[i + 1]);
+                continue;
+            }
+
+            batch.put(vote, response);
+        }
+
+        final StringBuilder changed = new StringBuilder();
+        final StringBuilder unchanged = new StringBuilder();
+
+        for (final Map.Entry<Vote, VoteResponse> entry : batch.entrySet()) {
+            final Vote vote = entry.getKey();
+            final VoteResponse response = entry.getValue();
+            final VoteResponse previous;
+
+            try {
+                previous = vote.register(member.getUser().getIdLong(), response);
+            } catch (final IllegalStateException e) {
+                missing.add(vote.getId());
+                continue;
+            }
+
+            final StringBuilder sb = previous == response ? unchanged : changed;
+
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+
+            sb.append("*").append(response.toString().toLowerCase()).append("* on ").append(vote.getId());
+
+            if (previous != null && previous != response) {
+                sb.append(" (was *").append(previous.toString().toLowerCase()).append("*)");
+            }
+        }
+
+        // Each vote is checked once however many of its ballots were in the batch
+        for (final Vote vote : batch.keySet()) {
+            vote.check();
+        }
+
+        final StringBuilder reply = new StringBuilder();
+
+        if (changed.length() > 0) {
+            reply.append("Okay ").append(member.getAsMention()).append(", I've set your votes to ").append(changed).append(".");
+        }
+
+        if (unchanged.length() > 0) {
+            reply.append(reply.length() > 0 ? " You'd" : member.getAsMention() + ", you'd").append(" already voted ").append(unchanged).append(".");
+        }
+
+        if (!missing.isEmpty()) {
+            reply.append(reply.length() > 0 ? " " : "").append("I couldn't find ").append(missing.size() == 1 ? "vote " : "votes ").append(String.join(", ", missing)).append(".");
+        }
+
+        if (!unrecognised.isEmpty()) {
+            reply.append(reply.length() > 0 ? " " : "").append("I don't recognise ").append(String.join(", ", unrecognised)).append("; you must say 'yea', 'nay' or 'abstain'.");
+        }
+
+        if (changed.length() == 0 && unchanged.length() == 0) {
+            this.reply(message, reply.toString());
+        } else {
+            this.plugin.getAcknowledger().acknowledge(message, reply.toString());
+        }
+    }
+
+    /**
+     * Finds a vote open in the channel a command was sent in.
+     * @param message The command
+     * @param id The ID of the vote
+     * @return The vote or null if there is no vote with that ID open in the channel
+     */
+    private Vote find(final Message message, final String id) {
+        final Vote vote = this.plugin.getVoteByID(id);
+
+        if (vote == null || vote.getChannelIdLong() != message.getChannel().getIdLong()) {
+            return null;
+        }
+
+        return vote;
+    }
 
+    private static VoteResponse parse(final String response) {
         try {
-            response = VoteResponse.valueOf(arguments[1].toUpperCase());
+            return VoteResponse.valueOf(response.toUpperCase());
         } catch (final IllegalArgumentException ignored) {
-            // Ignored
+            return null;
+        }
+    }
+
+    private void registerOne(final Message message, final Member member, final String id, final String argument) {
+        final Vote vote = this.find(message, id);
+
+        if (vote == null) {
+            this.reply(message, "I couldn't find that vote.");
+            return;
         }
 
+        final VoteResponse response = VoteRegisterCommand.parse(argument);
+
         if (response == null) {
             this.reply(message, "I don't recognise that response to the vote. You must say 'yea', 'nay' or 'abstain'.");
             return;
         }
 
-        if (vote.hasVoted(member)) {
-            final MessageBuilder mb = new MessageBuilder();
+        final VoteResponse previous;
 
-            if (vote.getResponses().get(member.getUser().getId()) == response) {
-                this.reply(message, "You've already voted for that option.");
-            } else {
-                mb.append("Okay ").append(member.getAsMention()).append(", I've changed your vote from ");
-                mb.append("*").append(vote.getResponses().get(member.getUser().getId()).toString().toLowerCase()).append("* ");
-                mb.append("to *").append(response.toString().toLowerCase()).append("*.");
+        try {
+            previous = vote.register(member.getUser().getIdLong(), response);
+        } catch (final IllegalStateException e) {
+            this.reply(message, "I couldn't find that vote.");
+            return;
+        }
 
-                vote.getResponses().remove(member.getUser().getId());
-                vote.getResponses().put(member.getUser().getId(), response);
+        if (previous == response) {
+            this.plugin.getAcknowledger().acknowledge(message, member.getAsMention() + ", you've already voted for that option.");
+        } else if (previous != null) {
+            final StringBuilder sb = new StringBuilder();
 
-                this.reply(message, mb.build());
-            }
+            sb.append("Okay ").append(member.getAsMention()).append(", I've changed your vote from ");
+            sb.append("*").append(previous.toString().toLowerCase()).append("* ");
+            sb.append("to *").append(response.toString().toLowerCase()).append("*.");
+
+            this.plugin.getAcknowledger().acknowledge(message, sb.toString());
         } else {
-            vote.getResponses().put(member.getUser().getId(), response);
-            this.reply(message, "Okay " + member.getAsMention() + ", I've set your vote to *" + response.toString().toLowerCase() + "*.");
+            this.plugin.getAcknowledger().acknowledge(message, "Okay " + member.getAsMention() + ", I've set your vote to *" + response.toString().toLowerCase() + "*.");
         }
 
         vote.check();
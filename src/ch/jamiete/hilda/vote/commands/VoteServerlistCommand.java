@@ -15,18 +15,13 @@
  *******************************************************************************/
 package ch.jamiete.hilda.vote.commands;
 
-import java.util.ArrayList;
-import net.dv8tion.jda.api.EmbedBuilder;
-import net.dv8tion.jda.api.MessageBuilder;
 import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Message;
 import org.apache.commons.lang3.StringUtils;
 import ch.jamiete.hilda.Hilda;
 import ch.jamiete.hilda.commands.ChannelSeniorCommand;
 import ch.jamiete.hilda.commands.ChannelSubCommand;
-import ch.jamiete.hilda.vote.Vote;
 import ch.jamiete.hilda.vote.VotePlugin;
-import ch.jamiete.hilda.vote.VoteResponse;
 
 public class VoteServerlistCommand extends ChannelSubCommand {
     private final VotePlugin plugin;
@@ -43,51 +38,20 @@ public class VoteServerlistCommand extends ChannelSubCommand {
 
     @Override
     public void execute(final Message message, final String[] arguments, final String label) {
-        final ArrayList<Vote> eligible = new ArrayList<>();
-        for (final Vote vote : this.plugin.getVotes()) {
-            if (this.hilda.getBot().getTextChannelById(vote.getChannelId()).getGuild() == message.getGuild()) {
-                eligible.add(vote);
-            }
-        }
-
-        if (eligible.size() == 0) {
-            this.reply(message, "I am not managing any votes right now.");
+        if (arguments.length > 1 || arguments.length == 1 && (!StringUtils.isNumeric(arguments[0]) || arguments[0].length() > 9)) {
+            this.usage(message, "[page]", label);
             return;
         }
 
-        final EmbedBuilder eb = new EmbedBuilder();
-
-        eb.setTitle("Currently managing " + eligible.size() + " " + (eligible.size() + eligible.size() == 1 ? "vote" : "votes"), null);
-
-        for (final Vote vote : eligible) {
-            final MessageBuilder mb = new MessageBuilder();
-
-            mb.append("ID ").append(vote.getId(), MessageBuilder.Formatting.ITALICS).append("\n");
-            mb.append("Opened in ").append(this.hilda.getBot().getTextChannelById(vote.getChannelId()).getName(), MessageBuilder.Formatting.ITALICS);
-            mb.append(" by ").append(vote.getOpener(), MessageBuilder.Formatting.ITALICS).append("\n");
-            mb.append("Received ").append(vote.getResponses().size()).append(" ").append(vote.getResponses().size() == 1 ? "response" : "responses");
+        final long scope = message.getGuild().getIdLong();
 
-            if (!vote.getResponses().isEmpty()) {
-                final int yea = (int) vote.getResponses().values().stream().filter(response -> response == VoteResponse.YEA).count();
-                final int nay = (int) vote.getResponses().values().stream().filter(response -> response == VoteResponse.NAY).count();
-
-                mb.append("\n").append("Currently at ");
-
-                if (nay == 0) {
-                    mb.append("100");
-                } else if (yea == 0) {
-                    mb.append("0");
-                } else {
-                    mb.append(Math.round((double) yea / (yea + nay) * 100));
-                }
-
-                mb.append("% acceptance");
-            }
-
-            eb.addField(StringUtils.abbreviate(vote.getQuestion(), 256), mb.build().getContentRaw(), false);
+        if (this.plugin.getGuildVotes(scope).isEmpty()) {
+            this.reply(message, "I am not managing any votes right now.");
+            return;
         }
 
-        this.reply(message, eb.build());
+        final int page = arguments.length == 0 ? 1 : Integer.parseInt(arguments[0]);
+        this.plugin.getListings().post(message.getChannel(), scope, true, message.getAuthor().getIdLong(), page);
     }
 
 }
@@ -15,11 +15,7 @@
  *******************************************************************************/
 package ch.jamiete.hilda.vote.commands;
 
-import java.awt.Color;
 import java.util.Arrays;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-import net.dv8tion.jda.api.EmbedBuilder;
 import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
@@ -28,10 +24,10 @@ import ch.jamiete.hilda.Hilda;
 import ch.jamiete.hilda.Util;
 import ch.jamiete.hilda.commands.ChannelSeniorCommand;
 import ch.jamiete.hilda.commands.ChannelSubCommand;
-import ch.jamiete.hilda.commands.CommandManager;
 import ch.jamiete.hilda.vote.Vote;
 import ch.jamiete.hilda.vote.VotePlugin;
-import ch.jamiete.hilda.vote.VoteTimer;
+import ch.jamiete.hilda.vote.VoteReactions;
+import ch.jamiete.hilda.vote.VoteResponse;
 
 public class VoteStartCommand extends ChannelSubCommand {
     private final VotePlugin plugin;
@@ -51,16 +47,14 @@ public class VoteStartCommand extends ChannelSubCommand {
         final Member member = message.getGuild().getMember(message.getAuthor());
 
         final Vote vote = new Vote(this.hilda, this.plugin);
-        vote.setId(this.plugin.getFreshID());
         vote.setOpener(member.getEffectiveName());
         vote.setOpenerId(member.getUser().getId());
         vote.setAvatar(member.getUser().getAvatarUrl());
-        vote.setChannelId(message.getTextChannel().getId());
+        vote.setChannelId(message.getTextChannel().getIdLong());
+        vote.setChannel(message.getTextChannel());
+        vote.setGuildId(message.getGuild().getIdLong());
         vote.setCommencement(System.currentTimeMillis());
 
-        final ScheduledFuture<?> future = this.hilda.getExecutor().schedule(new VoteTimer(vote), VotePlugin.MAXIMUM_LENGTH, TimeUnit.MILLISECONDS);
-        vote.setFuture(future);
-
         vote.setQuestion(Util.combineSplit(0, arguments, " ").trim());
 
         if (vote.getQuestion().length() == 0 || StringUtils.isNumeric(arguments[0]) && vote.getQuestion().replace(arguments[0], "").trim().equals("")) {
@@ -69,28 +63,39 @@ public class VoteStartCommand extends ChannelSubCommand {
         }
 
         if (StringUtils.isNumeric(arguments[0])) {
+            // Snapshots and the archive save the requirement in two bytes, so keep it to a percentage
+            if (arguments[0].length() > 3 || Integer.parseInt(arguments[0]) > 100) {
+                this.reply(message, "The supermajority requirement must be a percentage from 0 to 100.");
+                return;
+            }
+
             vote.setQuestion(Util.combineSplit(1, arguments, " ").trim());
             vote.setPercent(Integer.parseInt(arguments[0]));
         }
 
-        this.plugin.addVote(vote);
+        vote.setId(this.plugin.getFreshID());
 
-        final EmbedBuilder eb = new EmbedBuilder();
+        try {
+            this.plugin.addVote(vote);
+        } catch (final IllegalStateException e) {
+            // The server's votes are being handed to another process
+            this.reply(message, "Votes can't be started in this server right now. Try again in a moment.");
+            return;
+        }
 
-        eb.setTitle(StringUtils.abbreviate(vote.getQuestion(), 256), null);
-        eb.setColor(Color.decode("#eeb200"));
+        this.hilda.getExecutor().execute(() -> this.plugin.validate(vote));
 
-        if (vote.getPercent() == null) {
-            eb.setFooter("Vote " + vote.getId() + " opened by " + vote.getOpener(), vote.getAvatar());
-        } else {
-            eb.setFooter("Vote " + vote.getId() + " opened by " + vote.getOpener() + " with supermajority requirement of " + vote.getPercent() + " per cent", vote.getAvatar());
-        }
+        final boolean reactions = VoteReactions.ENABLED && message.getGuild().getSelfMember().hasPermission(message.getTextChannel(), Permission.MESSAGE_ADD_REACTION);
 
-        eb.addField("Agree?", CommandManager.PREFIX + "v register " + vote.getId() + " yea", false);
-        eb.addField("Disgree?", CommandManager.PREFIX + "v register " + vote.getId() + " nay", false);
-        eb.addField("Wish to abstain?", CommandManager.PREFIX + "v register " + vote.getId() + " abstain", false);
+        message.getChannel().sendMessage(this.plugin.getRenderer().renderOpen(vote, reactions)).queue(sent -> {
+            this.plugin.setMessage(vote, sent.getIdLong());
 
-        this.reply(message, eb.build());
+            if (reactions) {
+                for (final VoteResponse response : VoteResponse.values()) {
+                    sent.addReaction(VoteReactions.getEmoji(response)).queue();
+                }
+            }
+        });
 
         if (message.getGuild().getSelfMember().hasPermission(message.getTextChannel(), Permission.MESSAGE_MANAGE)) {
             message.delete().reason("I automatically delete some command invocations. If you don't want this to happen, remove my manage messages permission in the channel.").queue();
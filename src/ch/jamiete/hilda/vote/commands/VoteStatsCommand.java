@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2017 jamietech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package ch.jamiete.hilda.vote.commands;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Message;
+import org.apache.commons.lang3.StringUtils;
+import ch.jamiete.hilda.Hilda;
+import ch.jamiete.hilda.commands.ChannelSeniorCommand;
+import ch.jamiete.hilda.commands.ChannelSubCommand;
+import ch.jamiete.hilda.vote.DatabaseVoteStore;
+import ch.jamiete.hilda.vote.VoteMetrics;
+import ch.jamiete.hilda.vote.VotePlugin;
+import ch.jamiete.hilda.vote.VoteShards;
+import ch.jamiete.hilda.vote.VoteStore;
+
+public class VoteStatsCommand extends ChannelSubCommand {
+    private final VotePlugin plugin;
+
+    protected VoteStatsCommand(final Hilda hilda, final ChannelSeniorCommand senior, final VotePlugin plugin) {
+        super(hilda, senior);
+
+        this.plugin = plugin;
+
+        this.setName("stats");
+        this.setDescription("Shows how the vote system is performing.");
+        this.setMinimumPermission(Permission.ADMINISTRATOR);
+    }
+
+    private static String describe(final VoteMetrics.Histogram timing) {
+        if (timing.getCount() == 0) {
+            return "None";
+        }
+
+        return String.format("%d, median %.2fms, 99th %.2fms, max %.2fms", timing.getCount(), timing.get50thPercentileMillis(), timing.get99thPercentileMillis(), timing.getMaxMillis());
+    }
+
+    @Override
+    public void execute(final Message message, final String[] arguments, final String label) {
+        final VoteMetrics metrics = this.plugin.getMetrics();
+        final EmbedBuilder eb = new EmbedBuilder();
+
+        eb.setTitle("Vote statistics", null);
+
+        final StringBuilder votes = new StringBuilder();
+        votes.append(metrics.getActiveVotes()).append(" open in ").append(metrics.getGuildsWithVotes()).append(" servers\n");
+        votes.append(this.plugin.getGuildVoteCount(message.getGuild().getIdLong())).append(" open in this server\n");
+        votes.append(metrics.getTimerBacklog()).append(" waiting to expire");
+
+        final VoteStore store = this.plugin.getStore(message.getGuild().getIdLong());
+
+        if (store instanceof DatabaseVoteStore) {
+            try {
+                votes.append("\n").append(((DatabaseVoteStore) store).countGuildVotes(message.getGuild().getIdLong())).append(" saved in the database for this server");
+            } catch (final SQLException e) {
+                Hilda.getLogger().log(Level.WARNING, "Failed to count the votes saved in the database", e);
+                votes.append("\nCouldn't read the database");
+            }
+        }
+
+        eb.addField("Votes", votes.toString(), false);
+
+        if (this.plugin.getShards() != null) {
+            final List<Integer> owned = this.plugin.getShards().getOwned();
+            eb.addField("Shards", owned.isEmpty() ? "None of " + VoteShards.TOTAL : owned.size() + " of " + VoteShards.TOTAL + ": " + StringUtils.join(owned, ", "), false);
+        }
+
+        eb.addField("Registrations", String.format("%d in total, %.2f per second over the last minute", metrics.getRegistrations(), metrics.getRegistrationsPerSecond()), false);
+
+        final StringBuilder commands = new StringBuilder();
+        for (final Map.Entry<String, VoteMetrics.Histogram> entry : metrics.getCommands().entrySet()) {
+            commands.append(entry.getKey()).append(": ").append(VoteStatsCommand.describe(entry.getValue())).append("\n");
+        }
+        eb.addField("Commands", commands.toString().trim(), false);
+
+        eb.addField("Checks", VoteStatsCommand.describe(metrics.getCheck()), false);
+        eb.addField("Results", VoteStatsCommand.describe(metrics.getFinish()), false);
+
+        final StringBuilder saves = new StringBuilder(VoteStatsCommand.describe(metrics.getSave()));
+        if (metrics.getCheckpointDurationMillis() >= 0) {
+            saves.append("\nLast took ").append(metrics.getCheckpointDurationMillis()).append("ms and wrote ").append(metrics.getCheckpointSizeBytes()).append(" bytes");
+        }
+        eb.addField("Saves", saves.toString(), false);
+
+        this.reply(message, eb.build());
+    }
+
+}